@@ -0,0 +1,147 @@
+package com.mecury.netlibrary.base;
+
+import org.apache.http.Header;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 指数退避加随机抖动的重试策略。
+ * <p>
+ * 连接失败、读取失败以及408、429、502、503、504这类暂时性的错误会重试，第n次重试之前等待
+ * min(maxBackoffMs, initialBackoffMs * multiplier^n)，再随机减去其中jitter比例的时间，
+ * 避免大量客户端在同一时刻一起重试。服务端返回Retry-After时至少等待该时间，超过maxBackoffMs时不再重试。
+ * 默认只重试幂等的GET、PUT与DELETE请求，POST请求可能已经被服务端处理过，需要显式允许。
+ * </p>
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+
+    public static final float DEFAULT_BACKOFF_MULTIPLIER = 2f;
+
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10 * 1000;
+
+    /**
+     * 默认在退避时间的[1/2, 1]之间随机等待
+     */
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    /**
+     * 最大重试次数
+     */
+    private final int mMaxRetries;
+
+    /**
+     * 第一次重试之前的等待时间
+     */
+    private final long mInitialBackoffMs;
+
+    /**
+     * 每次重试等待时间的倍数
+     */
+    private final float mMultiplier;
+
+    /**
+     * 最长的等待时间
+     */
+    private final long mMaxBackoffMs;
+
+    /**
+     * 随机减去的等待时间的比例，0表示不抖动，1表示在[0, 退避时间]之间随机等待
+     */
+    private final float mJitter;
+
+    /**
+     * 是否重试POST请求
+     */
+    private final boolean isRetryNonIdempotent;
+
+    public DefaultRetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_BACKOFF_MULTIPLIER);
+    }
+
+    public DefaultRetryPolicy(int maxRetries, long initialBackoffMs, float multiplier) {
+        this(maxRetries, initialBackoffMs, multiplier, DEFAULT_MAX_BACKOFF_MS, DEFAULT_JITTER, false);
+    }
+
+    /**
+     * @param maxRetries 最大重试次数
+     * @param initialBackoffMs 第一次重试之前的等待时间
+     * @param multiplier 每次重试等待时间的倍数
+     * @param maxBackoffMs 最长的等待时间
+     * @param jitter 随机减去的等待时间的比例，取值为[0, 1]
+     * @param retryNonIdempotent 是否重试POST请求
+     */
+    public DefaultRetryPolicy(int maxRetries, long initialBackoffMs, float multiplier, long maxBackoffMs,
+                              float jitter, boolean retryNonIdempotent) {
+        if (maxRetries < 0 || initialBackoffMs < 0 || multiplier < 1 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in [0, 1]: " + jitter);
+        }
+        mMaxRetries = maxRetries;
+        mInitialBackoffMs = initialBackoffMs;
+        mMultiplier = multiplier;
+        mMaxBackoffMs = maxBackoffMs;
+        mJitter = jitter;
+        isRetryNonIdempotent = retryNonIdempotent;
+    }
+
+    @Override
+    public long getRetryDelayMs(Request<?> request, int retryCount, Response response) {
+        if (retryCount >= mMaxRetries || !isRetryable(response)) {
+            return -1;
+        }
+        if (!isRetryNonIdempotent && request.getHttpMethod() == Request.HttpMethod.POST) {
+            return -1;
+        }
+        double backoff = Math.min(mMaxBackoffMs, mInitialBackoffMs * Math.pow(mMultiplier, retryCount));
+        long delay = (long) (backoff * (1 - mJitter * ThreadLocalRandom.current().nextDouble()));
+        long retryAfter = retryAfterMs(response);
+        if (retryAfter > mMaxBackoffMs) {
+            return -1;
+        }
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * 连接或者读取失败，以及服务端暂时无法处理的结果可以重试
+     */
+    protected boolean isRetryable(Response response) {
+        if (response == null) {
+            return true;
+        }
+        switch (response.getStatusCode()) {
+            case 408:
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 解析以秒为单位的Retry-After，没有或者是日期格式时返回0
+     */
+    private static long retryAfterMs(Response response) {
+        Header header = response != null ? response.getFirstHeader("Retry-After") : null;
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+}
@@ -0,0 +1,191 @@
+package com.mecury.netlibrary.base;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 统计上传或者下载的进度，由HttpStack在执行请求的线程中调用。
+ * <p>
+ * 距离上一次通知至少传输了minBytes并且至少经过了minIntervalMs时才通知一次，传输结束时总会通知最终的进度，
+ * 通知通过Executor(默认为请求队列的ResponseDelivery)投递，与结果的分发一起批量执行，并且保证在结果回调之前。
+ * 该类不是线程安全的，只能在执行请求的线程中使用。
+ * </p>
+ */
+public class ProgressTracker {
+
+    /**
+     * 写入时每次统计的最大字节数，一次写入整个body时进度也能逐步更新
+     */
+    private static final int MAX_WRITE_SLICE = 8 * 1024;
+
+    private final Request.ProgressListener mListener;
+
+    private final Executor mExecutor;
+
+    private final boolean isUpload;
+
+    private final long mTotal;
+
+    private final long mMinBytes;
+
+    private final long mMinIntervalNanos;
+
+    private long mCurrent = 0;
+
+    private long mReported = 0;
+
+    private long mLastReportNanos;
+
+    private boolean isFinished = false;
+
+    /**
+     * @param listener
+     * @param executor 执行回调的Executor，为null时在当前线程中回调
+     * @param upload 是否是上传的进度
+     * @param total 总字节数，未知时为-1
+     * @param minBytes 两次通知之间最少传输的字节数
+     * @param minIntervalMs 两次通知之间最短的时间间隔
+     */
+    public ProgressTracker(Request.ProgressListener listener, Executor executor, boolean upload, long total,
+                           long minBytes, long minIntervalMs) {
+        mListener = listener;
+        mExecutor = executor;
+        isUpload = upload;
+        mTotal = total;
+        mMinBytes = Math.max(1, minBytes);
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        //第一次传输数据时立即通知
+        mLastReportNanos = System.nanoTime() - mMinIntervalNanos;
+    }
+
+    /**
+     * 传输了byteCount个字节
+     */
+    public void onProgress(long byteCount) {
+        if (byteCount <= 0 || isFinished) {
+            return;
+        }
+        mCurrent += byteCount;
+        long now = System.nanoTime();
+        if (mCurrent - mReported >= mMinBytes && now - mLastReportNanos >= mMinIntervalNanos) {
+            report(now);
+        }
+    }
+
+    /**
+     * 传输结束，通知还没有通知的最终进度
+     */
+    public void finish() {
+        if (isFinished) {
+            return;
+        }
+        isFinished = true;
+        if (mCurrent != mReported || mCurrent == 0) {
+            report(System.nanoTime());
+        }
+    }
+
+    public long getCurrent() {
+        return mCurrent;
+    }
+
+    private void report(long now) {
+        mReported = mCurrent;
+        mLastReportNanos = now;
+        final long current = mCurrent;
+        Runnable notifier = new Runnable() {
+            @Override
+            public void run() {
+                if (isUpload) {
+                    mListener.onUploadProgress(current, mTotal);
+                } else {
+                    mListener.onDownloadProgress(current, mTotal);
+                }
+            }
+        };
+        if (mExecutor != null) {
+            mExecutor.execute(notifier);
+        } else {
+            notifier.run();
+        }
+    }
+
+    /**
+     * 统计写入输出流的字节数，写入结束后需要调用finish()
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                onProgress(1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int slice = Math.min(length, MAX_WRITE_SLICE);
+                    out.write(buffer, offset, slice);
+                    onProgress(slice);
+                    offset += slice;
+                    length -= slice;
+                }
+            }
+        };
+    }
+
+    /**
+     * 统计从输入流读取的字节数，读到末尾或者关闭时自动调用finish()
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b == -1) {
+                    finish();
+                } else {
+                    onProgress(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = in.read(buffer, offset, length);
+                if (count == -1) {
+                    finish();
+                } else {
+                    onProgress(count);
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(n);
+                onProgress(skipped);
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    finish();
+                }
+            }
+        };
+    }
+}
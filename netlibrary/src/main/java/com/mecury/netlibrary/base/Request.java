@@ -2,10 +2,20 @@ package com.mecury.netlibrary.base;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by 海飞 on 2016/8/4.
@@ -42,6 +52,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         IMMEDIATE
     }
 
+    /**
+     * 默认两次进度通知之间最少传输的字节数
+     */
+    public static final long DEFAULT_PROGRESS_MIN_BYTES = 8 * 1024;
+
+    /**
+     * 默认两次进度通知之间最短的时间间隔
+     */
+    public static final long DEFAULT_PROGRESS_MIN_INTERVAL_MS = 100;
+
     /**
      * Default encoding for POST or PUT
      */
@@ -52,6 +72,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     public final static String HEADER_CONTENT_TYPE = "Content-Type";
 
+    public final static String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
     /**
      * 请求序列号
      */
@@ -65,18 +87,94 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /**
      * 是否取消请求
      */
-    protected boolean isCancel = false;
+    protected volatile boolean isCancel = false;
+
+    /**
+     * 保护isCancel与mAbortHandler，保证取消与HttpStack设置AbortHandler的先后顺序不会漏掉中断
+     */
+    private final Object mCancelLock = new Object();
+
+    /**
+     * 中断正在执行的网络请求，由HttpStack在发起请求时设置
+     */
+    private AbortHandler mAbortHandler;
+
+    /**
+     * 请求的标记，用于按照标记批量取消请求
+     */
+    private volatile Object mTag;
+
+    /**
+     * 请求的总时限，包括排队、建立连接、发送body与读取结果的时间，0表示没有时限
+     */
+    private volatile long mTimeoutMs = 0;
+
+    /**
+     * 请求的截止时间，加入RequestQueue时根据mTimeoutMs计算，0表示没有截止时间
+     */
+    private volatile long mDeadlineNanos = 0;
+
+    /**
+     * 是否已经超过截止时间
+     */
+    private volatile boolean isExpired = false;
+
+    /**
+     * 失败时的重试策略，为null时使用RequestQueue的默认策略
+     */
+    private volatile RetryPolicy mRetryPolicy;
+
+    /**
+     * 已经重试的次数
+     */
+    private volatile int mRetryCount = 0;
 
     /**
      * 该请求是否应该缓存
      */
     private boolean mShouldCache = true;
 
+    /**
+     * 是否使用gzip压缩请求body
+     */
+    private boolean isGzipBody = false;
+
     /**
      * 请求Listener
      */
     protected RequestListener<T> mRequestListener;
 
+    /**
+     * 上传与下载进度Listener
+     */
+    private volatile ProgressListener mProgressListener;
+
+    /**
+     * 进度通知的节流参数
+     */
+    private volatile long mProgressMinBytes = DEFAULT_PROGRESS_MIN_BYTES;
+    private volatile long mProgressMinIntervalMs = DEFAULT_PROGRESS_MIN_INTERVAL_MS;
+
+    /**
+     * 执行进度回调的Executor，由框架在执行请求之前设置为ResponseDelivery
+     */
+    private volatile Executor mProgressExecutor;
+
+    /**
+     * 在工作线程中解析得到的结果
+     */
+    private T mParsedResult;
+
+    /**
+     * 是否已经在工作线程中解析过结果
+     */
+    private boolean isParsed = false;
+
+    /**
+     * parseResponse()抛出的异常，不为null时分发失败的结果
+     */
+    private RuntimeException mParseError;
+
     /**
      * 请求的url
      */
@@ -97,6 +195,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Map<String, String> mBodyParams = new HashMap<String, String>();
 
+    /**
+     * 本次执行时附加的header，例如缓存验证的条件header，不参与缓存key的计算
+     */
+    private volatile Map<String, String> mAdditionalHeaders = Collections.emptyMap();
+
+    /**
+     * 请求是否已经冻结，冻结之后header和请求参数不能再修改
+     */
+    private volatile boolean isFrozen = false;
+
+    /**
+     * 缓存与去重使用的key，冻结时计算
+     */
+    private volatile String mCacheKey;
+
     /**
      * @param method
      * @param url
@@ -109,6 +222,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     public void addHeader(String name, String value) {
+        checkNotFrozen();
         mHeaders.put(name, value);
     }
 
@@ -118,15 +232,53 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     public abstract T parseResponse(Response response);
 
     /**
-     * 处理Response, 该方法运行在UI线程
+     * 在工作线程中解析结果，解析后的结果在deliveryResponse()时直接交给Listener,避免在UI线程中解析
+     *
+     * @param response
+     */
+    public final void parseNetworkResponse(Response response) {
+        mParsedResult = parseSafely(response);
+        isParsed = true;
+    }
+
+    /**
+     * 解析结果，parseResponse()抛出RuntimeException时只让这个请求失败，不影响执行线程以及合并到一起的相同请求
+     */
+    private T parseSafely(Response response) {
+        mParseError = null;
+        if (response == null) {
+            return null;
+        }
+        try {
+            return parseResponse(response);
+        } catch (RuntimeException e) {
+            Log.e("", "### 解析结果出错 : " + mUrl, e);
+            mParseError = e;
+            return null;
+        }
+    }
+
+    /**
+     * 处理Response, 该方法运行在UI线程。如果还没有解析过结果，则在当前线程中解析
      *
      * @param response
      */
     public final void deliveryResponse(Response response) {
-        T result = parseResponse(response);
+        T result;
+        if (isParsed) {
+            result = mParsedResult;
+            mParsedResult = null;
+        } else {
+            result = parseSafely(response);
+        }
         if (mRequestListener != null) {
-            int stCode = response != null ? response.getStatusCode() : -1;
-            String msg = response != null ? response.getMessage() : "unKnow error";
+            int stCode = response != null && mParseError == null ? response.getStatusCode() : -1;
+            String msg;
+            if (mParseError != null) {
+                msg = "Parse error : " + mParseError;
+            } else {
+                msg = response != null ? response.getMessage() : (isExpired ? "Request timed out" : "unKnow error");
+            }
             Log.e("", "### 执行回调 ： stCode = " + stCode + ", resulte = " + result + ",err : " + msg);
             mRequestListener.onComplete(stCode, result, msg);
         }
@@ -140,6 +292,46 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mRequestListener;
     }
 
+    /**
+     * 设置上传与下载进度Listener，通过请求队列执行时回调运行在UI线程
+     */
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    public ProgressListener getProgressListener() {
+        return mProgressListener;
+    }
+
+    /**
+     * 设置进度通知的频率，距离上一次通知至少传输了minBytes并且至少经过了minIntervalMs才会再次通知
+     */
+    public void setProgressThrottle(long minBytes, long minIntervalMs) {
+        mProgressMinBytes = minBytes;
+        mProgressMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * 设置执行进度回调的Executor，由框架在执行请求之前调用
+     */
+    public void setProgressExecutor(Executor executor) {
+        mProgressExecutor = executor;
+    }
+
+    /**
+     * 创建统计进度的ProgressTracker，由HttpStack在上传body与读取结果时调用，没有设置Listener时返回null
+     * @param upload 是否是上传的进度
+     * @param total 总字节数，未知时为-1
+     */
+    public ProgressTracker newProgressTracker(boolean upload, long total) {
+        ProgressListener listener = mProgressListener;
+        if (listener == null) {
+            return null;
+        }
+        return new ProgressTracker(listener, mProgressExecutor, upload, total,
+                mProgressMinBytes, mProgressMinIntervalMs);
+    }
+
     public int getSerialNumber() {
         return mSericalNum;
     }
@@ -172,10 +364,111 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mHeaders;
     }
 
+    /**
+     * 设置本次执行时附加的header，由框架在每次执行请求之前设置，HttpStack发送请求时会一起发送
+     */
+    public void setAdditionalHeaders(Map<String, String> headers) {
+        mAdditionalHeaders = headers != null
+                ? Collections.unmodifiableMap(new HashMap<String, String>(headers))
+                : Collections.<String, String>emptyMap();
+    }
+
+    public Map<String, String> getAdditionalHeaders() {
+        return mAdditionalHeaders;
+    }
+
     public Map<String, String> getParams() {
         return mBodyParams;
     }
 
+    /**
+     * 冻结请求，计算缓存key，之后header与请求参数不能再修改。请求加入RequestQueue时自动冻结
+     */
+    public final synchronized void freeze() {
+        if (isFrozen) {
+            return;
+        }
+        mCacheKey = computeCacheKey();
+        mHeaders = Collections.unmodifiableMap(mHeaders);
+        mBodyParams = Collections.unmodifiableMap(mBodyParams);
+        isFrozen = true;
+    }
+
+    public boolean isFrozen() {
+        return isFrozen;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen) {
+            throw new IllegalStateException("Request has been frozen: " + mUrl);
+        }
+    }
+
+    /**
+     * 缓存与去重使用的key，由请求方法、url、影响结果的header以及body的摘要组成，
+     * 相同key的请求会得到同样的结果。第一次调用时会冻结请求
+     */
+    public String getCacheKey() {
+        if (!isFrozen) {
+            freeze();
+        }
+        return mCacheKey;
+    }
+
+    /**
+     * 不带header与body的请求的缓存key，例如POST成功后使同一个url的GET缓存失效
+     */
+    public static String cacheKeyOf(HttpMethod method, String url) {
+        return method + " " + url;
+    }
+
+    private String computeCacheKey() {
+        StringBuilder keyBuilder = new StringBuilder(cacheKeyOf(mHttpMethod, mUrl));
+        Map<String, String> sortedHeaders = new TreeMap<String, String>();
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            if (isVaryHeader(header.getKey())) {
+                sortedHeaders.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+            }
+        }
+        for (Map.Entry<String, String> header : sortedHeaders.entrySet()) {
+            keyBuilder.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        String bodyDigest = getBodyDigest();
+        if (bodyDigest != null) {
+            keyBuilder.append("\nbody: ").append(bodyDigest);
+        }
+        return keyBuilder.toString();
+    }
+
+    /**
+     * 该header是否影响请求结果，影响结果的header会参与缓存key的计算，默认所有header都参与
+     */
+    protected boolean isVaryHeader(String name) {
+        return true;
+    }
+
+    /**
+     * 请求body的摘要，没有body时返回null。body无法重复读取的子类需要覆写该方法
+     */
+    protected String getBodyDigest() {
+        byte[] body = getBody();
+        if (body == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(body);
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(Arrays.hashCode(body));
+        }
+    }
+
     public boolean isHttps() {
         return mUrl.startsWith("https");
     }
@@ -191,10 +484,175 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * 是否使用gzip压缩请求body，为true时HttpStack发送时边压缩边写入连接，并带上Content-Encoding: gzip。
+     * 适合上传较大并且容易压缩的表单或者JSON，服务端需要支持解压请求body
+     */
+    public void setGzipBody(boolean gzipBody) {
+        checkNotFrozen();
+        isGzipBody = gzipBody;
+    }
+
+    public boolean isGzipBody() {
+        return isGzipBody;
+    }
+
+    /**
+     * 是否以流的形式读取结果，为true时HttpStack不会将结果读取到内存中，
+     * parseResponse()会在执行请求的线程中调用，需要自己通过Response.getContent()读取结果
+     */
+    public boolean isStreamingResponse() {
+        return false;
+    }
+
+    /**
+     * 取消请求，可以在任意线程中调用。还未执行的请求不会再执行，正在执行的请求会中断连接，
+     * 取消之后不会再回调RequestListener。通过RequestQueue.cancelAll()取消时还会立即从调度器中移除
+     */
+    public void cancel() {
+        AbortHandler abortHandler;
+        synchronized (mCancelLock) {
+            if (isCancel) {
+                return;
+            }
+            isCancel = true;
+            abortHandler = mAbortHandler;
+        }
+        if (abortHandler != null) {
+            abortHandler.abort();
+        }
+    }
+
     public boolean isCanceled() {
         return isCancel;
     }
 
+    /**
+     * 设置中断正在执行的网络请求的AbortHandler，由HttpStack在建立连接之前调用，请求执行完毕后由框架设置为null。
+     * 请求已经被取消或者已经超时时立即中断
+     */
+    public void setAbortHandler(AbortHandler abortHandler) {
+        synchronized (mCancelLock) {
+            mAbortHandler = abortHandler;
+            if (!(isCancel || isExpired) || abortHandler == null) {
+                return;
+            }
+        }
+        abortHandler.abort();
+    }
+
+    /**
+     * 设置请求的总时限，包括在队列中等待的时间。超时时还未执行的请求直接失败，正在执行的请求会中断连接，
+     * 都会回调RequestListener，stCode为-1。为0时没有时限，只受HttpConfig中连接与读取超时的限制
+     */
+    public void setTimeout(long timeoutMs) {
+        if (timeoutMs < 0) {
+            throw new IllegalArgumentException("timeoutMs < 0: " + timeoutMs);
+        }
+        checkNotFrozen();
+        mTimeoutMs = timeoutMs;
+    }
+
+    public long getTimeout() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * 开始计时，由RequestQueue在请求第一次加入队列时调用，重新加入队列时不会重新计时
+     * @return 请求是否有截止时间
+     */
+    public boolean startDeadline() {
+        if (mTimeoutMs <= 0) {
+            return false;
+        }
+        if (mDeadlineNanos == 0) {
+            mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+        }
+        return true;
+    }
+
+    /**
+     * 距离截止时间剩余的毫秒数，没有截止时间时返回Long.MAX_VALUE，已经超时时返回值小于等于0。
+     * HttpStack用它限制连接与读取的超时时间
+     */
+    public long getRemainingTimeMs() {
+        long deadline = mDeadlineNanos;
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * 将HttpConfig中的连接或者读取超时限制在剩余的时间之内，没有截止时间时原样返回
+     * @param timeoutMs 配置的超时时间，0表示不超时
+     */
+    public int limitTimeout(int timeoutMs) {
+        long remaining = getRemainingTimeMs();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutMs;
+        }
+        //0表示不超时，剩余时间不足时至少保留1毫秒，由超时检测中断
+        int limited = (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+        return timeoutMs > 0 ? Math.min(timeoutMs, limited) : limited;
+    }
+
+    /**
+     * 将请求标记为超时并中断正在执行的网络请求，由超时检测线程调用
+     * @return 请求已经被取消或者已经超时时返回false
+     */
+    public boolean expire() {
+        AbortHandler abortHandler;
+        synchronized (mCancelLock) {
+            if (isCancel || isExpired) {
+                return false;
+            }
+            isExpired = true;
+            abortHandler = mAbortHandler;
+        }
+        if (abortHandler != null) {
+            abortHandler.abort();
+        }
+        return true;
+    }
+
+    public boolean isExpired() {
+        return isExpired;
+    }
+
+    /**
+     * 设置失败时的重试策略，例如DefaultRetryPolicy，为null时使用RequestQueue.setDefaultRetryPolicy()设置的策略
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * 已经重试的次数，由RequestPerformer在安排重试时更新
+     */
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        mRetryCount = retryCount;
+    }
+
+    /**
+     * 设置请求的标记，例如发起请求的页面，页面销毁时通过RequestQueue.cancelAll(tag)取消
+     */
+    public void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    public Object getTag() {
+        return mTag;
+    }
+
     /**
      * Return the raw POST or PUT  body to be sent.
      */
@@ -207,6 +665,32 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
 
+    /**
+     * body是否通过writeBody()边生成边写入连接，而不是先通过getBody()生成完整的字节数组。
+     * 上传大文件的子类返回true并覆写getBodyContentLength()与writeBody()，内存占用与文件大小无关
+     */
+    public boolean isStreamingBody() {
+        return false;
+    }
+
+    /**
+     * body的长度，未知时返回-1，HttpStack会使用分块传输
+     */
+    public long getBodyContentLength() {
+        byte[] body = getBody();
+        return body != null ? body.length : -1;
+    }
+
+    /**
+     * 将body写入连接的输出流，isStreamingBody()为true时由HttpStack调用
+     */
+    public void writeBody(OutputStream outputStream) throws IOException {
+        byte[] body = getBody();
+        if (body != null) {
+            outputStream.write(body);
+        }
+    }
+
     /**
      * Converts <code>params</code> into an application/x-www-form-urlencoded
      * encoded string.
@@ -230,7 +714,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
 
     /**
-     * 用于对请求的排序处理，根据优先级和加入到队列的序号进行排序
+     * 用于对请求的排序处理，根据优先级和加入到队列的序号进行排序，优先级高的排在前面
      */
     @Override
     public int compareTo(Request<T> another) {
@@ -240,19 +724,19 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         //如果优先级相等，那么按照添加到队列的序列号来执行
         return myPriority.equals(anotherPriority)
                 ? this.getSerialNumber() - another.getSerialNumber()
-                : myPriority.ordinal() - anotherPriority.ordinal();
+                : anotherPriority.ordinal() - myPriority.ordinal();
     }
 
+    /**
+     * 使用冻结时计算的缓存key，避免每次都对header与参数的Map重新计算hash
+     */
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((mHeaders == null) ? 0 : mHeaders.hashCode());
-        result = prime * result + ((mHttpMethod == null) ? 0 : mHttpMethod.hashCode());
-        result = prime * result + ((mBodyParams == null) ? 0 : mBodyParams.hashCode());
+        result = prime * result + cacheKey().hashCode();
         result = prime * result + ((mPriority == null) ? 0 : mPriority.hashCode());
         result = prime * result + (mShouldCache ? 1231 : 1237);
-        result = prime * result + ((mUrl == null) ? 0 : mUrl.hashCode());
         return result;
     }
 
@@ -268,37 +752,46 @@ public abstract class Request<T> implements Comparable<Request<T>> {
             return false;
         }
         Request<?> other = (Request<?>) obj;
-        if (mHeaders == null) {
-            if (other.mHeaders != null) {
-                return false;
-            }
-        } else if (!mHeaders.equals(other.mHeaders)){
-            return false;
-        }
-        if (mHttpMethod != other.mHttpMethod){
-            return false;
-        }
-        if (mBodyParams == null){
-            if (other.mBodyParams != null){
-                return false;
-            }
-        }else if (!mBodyParams.equals(other.mBodyParams)){
-            return false;
-        }
         if (mPriority != other.mPriority){
             return false;
         }
         if (mShouldCache != other.shouldCache()){
             return false;
         }
-        if (mUrl == null){
-            if (other.mUrl != null){
-                return false;
-            }
-        }else if (!mUrl.equals(other.mUrl)){
-            return false;
-        }
-        return true;
+        return cacheKey().equals(other.cacheKey());
+    }
+
+    /**
+     * 已经冻结时直接返回缓存key，否则临时计算，不会冻结请求
+     */
+    private String cacheKey() {
+        return isFrozen ? mCacheKey : computeCacheKey();
+    }
+
+    /**
+     * 上传与下载进度Listener，回调按照节流参数限制频率，传输结束时总会回调最终的进度
+     */
+    public static interface ProgressListener {
+        /**
+         * 上传请求body的进度，body经过压缩时为压缩前的字节数
+         * @param current 已经上传的字节数
+         * @param total 总字节数，未知时为-1
+         */
+        public void onUploadProgress(long current, long total);
+
+        /**
+         * 读取结果的进度，结果经过压缩时为从网络读取的压缩后的字节数
+         * @param current 已经读取的字节数
+         * @param total 总字节数，未知时为-1
+         */
+        public void onDownloadProgress(long current, long total);
+    }
+
+    /**
+     * 中断正在执行的网络请求，例如断开HttpURLConnection或者取消okhttp3.Call，会在调用cancel()的线程中执行
+     */
+    public static interface AbortHandler {
+        public void abort();
     }
 
     /**
@@ -1,12 +1,19 @@
 package com.mecury.netlibrary.base;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Created by 海飞 on 2016/8/4.
@@ -16,6 +23,37 @@ public class Response extends BasicHttpResponse {
 
     public byte[] rewData = new byte[0];
 
+    /**
+     * 结果是否以流的形式读取，流式结果不会缓存到rewData中
+     */
+    private boolean isStreaming = false;
+
+    /**
+     * 流式结果的输入流，HttpEntity的流只能获取一次
+     */
+    private InputStream mContentStream;
+
+    /**
+     * 流式结果读取完毕后释放连接
+     */
+    private Closeable mConnectionCloser;
+
+    /**
+     * 发出请求与收到结果时的本地时间，用于计算缓存的年龄
+     */
+    private long mSentRequestAtMillis;
+    private long mReceivedResponseAtMillis;
+
+    /**
+     * 从网络读取的字节数与解压后的字节数，没有经过HttpStack时为null
+     */
+    private CountingInputStream mCompressedCounter;
+    private CountingInputStream mDecodedCounter;
+
+    /**
+     * 读取或者解压body是否失败，失败时rewData不完整，不能缓存
+     */
+    private boolean isBodyBroken = false;
 
     public Response(ProtocolVersion ver, int code, String reason) {
         super(ver, code, reason);
@@ -25,16 +63,161 @@ public class Response extends BasicHttpResponse {
         super(statusline);
     }
 
+    /**
+     * 读取body失败时不抛出异常，结果被标记为不完整，HttpStack应该使用setEntity(HttpEntity, boolean)
+     */
     @Override
     public void setEntity(HttpEntity entity) {
+        try {
+            setEntity(entity, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            rewData = new byte[0];
+            isBodyBroken = true;
+        }
+    }
+
+    /**
+     * @param entity
+     * @param streaming 为true时不读取结果，由调用者在执行请求的线程中通过getContent()读取，读取完毕后调用close()
+     * @throws IOException 读取或者解压body失败，例如连接中断或者压缩数据损坏
+     */
+    public void setEntity(HttpEntity entity, boolean streaming) throws IOException {
         super.setEntity(entity);
-        rewData = entityToByte(entity);
+        isStreaming = streaming;
+        if (!streaming) {
+            rewData = entityToByte(entity);
+        }
+    }
+
+    /**
+     * body是否被完整读取，读取失败的结果不能缓存
+     */
+    public boolean isBodyComplete() {
+        return !isBodyBroken;
+    }
+
+    /**
+     * 设置发出请求与收到结果时的本地时间
+     */
+    public void setRequestTimes(long sentRequestAtMillis, long receivedResponseAtMillis){
+        mSentRequestAtMillis = sentRequestAtMillis;
+        mReceivedResponseAtMillis = receivedResponseAtMillis;
+    }
+
+    public long getSentRequestAtMillis(){
+        return mSentRequestAtMillis;
+    }
+
+    public long getReceivedResponseAtMillis(){
+        return mReceivedResponseAtMillis;
+    }
+
+    /**
+     * 设置统计网络字节数与解压后字节数的输入流，由HttpStack调用
+     */
+    public void setByteCounters(CountingInputStream compressed, CountingInputStream decoded){
+        mCompressedCounter = compressed;
+        mDecodedCounter = decoded;
+    }
+
+    /**
+     * 从网络读取的body字节数，结果经过透明解压时为压缩后的大小。流式结果在读取的过程中不断增加
+     */
+    public long getCompressedByteCount(){
+        return mCompressedCounter != null ? mCompressedCounter.getCount() : rewData.length;
+    }
+
+    /**
+     * 解压后的body字节数，没有经过压缩时与getCompressedByteCount()相同
+     */
+    public long getDecodedByteCount(){
+        return mDecodedCounter != null ? mDecodedCounter.getCount() : rewData.length;
+    }
+
+    public boolean isStreaming(){
+        return isStreaming;
+    }
+
+    /**
+     * 设置流式结果读取完毕后释放连接的操作
+     */
+    public void setConnectionCloser(Closeable closer){
+        mConnectionCloser = closer;
+    }
+
+    /**
+     * 关闭流式结果并释放连接，非流式结果不需要调用
+     */
+    public void close(){
+        if (!isStreaming) {
+            return;
+        }
+        try {
+            obtainContentStream().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (mConnectionCloser != null) {
+            try {
+                mConnectionCloser.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mConnectionCloser = null;
+        }
     }
 
     public byte[] getRawData(){
         return rewData;
     }
 
+    /**
+     * 以流的形式读取结果，不需要先将rawData转换为String。流式结果只能读取一次
+     */
+    public InputStream getContent() throws IOException {
+        if (isStreaming) {
+            return obtainContentStream();
+        }
+        return new ByteArrayInputStream(rewData);
+    }
+
+    private synchronized InputStream obtainContentStream() throws IOException {
+        if (mContentStream == null) {
+            HttpEntity entity = getEntity();
+            InputStream content = entity != null ? entity.getContent() : null;
+            mContentStream = content != null ? content : new ByteArrayInputStream(new byte[0]);
+        }
+        return mContentStream;
+    }
+
+    /**
+     * 结果的长度，未知时返回-1
+     */
+    public long getContentLength(){
+        if (isStreaming) {
+            HttpEntity entity = getEntity();
+            return entity != null ? entity.getContentLength() : -1;
+        }
+        return rewData.length;
+    }
+
+    /**
+     * 从Content-Type中解析出字符集，没有指定时返回defaultCharset
+     */
+    public String getCharset(String defaultCharset){
+        Header contentType = getFirstHeader(HTTP.CONTENT_TYPE);
+        if (contentType != null){
+            for (HeaderElement element : contentType.getElements()){
+                NameValuePair charset = element.getParameterByName("charset");
+                if (charset != null && charset.getValue() != null){
+                    return charset.getValue();
+                }
+            }
+        }
+        return defaultCharset;
+    }
+
     /**
      * 得到状态码
      */
@@ -46,13 +229,15 @@ public class Response extends BasicHttpResponse {
         return getStatusLine().getReasonPhrase();
     }
 
-    public byte[] entityToByte(HttpEntity entity){
-        try {
-            return EntityUtils.toByteArray(entity);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * 读取整个body，读取或者解压失败时抛出异常，不会返回不完整的数据
+     */
+    public byte[] entityToByte(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return new byte[0];
         }
-        return new byte[0];
+        byte[] data = EntityUtils.toByteArray(entity);
+        return data != null ? data : new byte[0];
     }
 }
 
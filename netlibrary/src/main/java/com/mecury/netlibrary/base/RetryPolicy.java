@@ -0,0 +1,17 @@
+package com.mecury.netlibrary.base;
+
+/**
+ * 请求失败时的重试策略，由RequestPerformer在每次执行失败之后调用。
+ * 重试的请求通过RequestQueue的延迟队列在等待时间之后重新加入调度器，等待期间不占用执行线程
+ */
+public interface RetryPolicy {
+
+    /**
+     * 计算下一次重试之前等待的时间
+     * @param request 失败的请求
+     * @param retryCount 已经重试的次数，第一次失败时为0
+     * @param response 请求的结果，连接失败或者读取失败时为null
+     * @return 等待的毫秒数，小于0时不再重试，将失败的结果分发给Listener
+     */
+    public long getRetryDelayMs(Request<?> request, int retryCount, Response response);
+}
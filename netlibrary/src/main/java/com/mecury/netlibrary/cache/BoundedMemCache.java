@@ -0,0 +1,247 @@
+package com.mecury.netlibrary.cache;
+
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.Header;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按字节数限制大小的内存缓存，线程安全。
+ * <p>
+ * 与LruMemCache不同，缓存大小按照body与header实际占用的字节数计算，小于1KB的结果也会计入大小；
+ * 缓存被分为多个分段，每个分段拥有自己的锁与LRU顺序，多个NetworkExecutor线程同时读写时互不阻塞。
+ * 同时统计命中、未命中与淘汰的次数，便于监控缓存的效果。
+ * </p>
+ */
+public class BoundedMemCache implements Cache<String, Response> {
+
+    /**
+     * 默认分段数
+     */
+    public static final int DEFAULT_STRIPES = 8;
+
+    /**
+     * 每个缓存项的固定开销，包括Response对象、状态行与Map节点
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * 每个header的固定开销
+     */
+    private static final int HEADER_OVERHEAD = 48;
+
+    private final Segment[] mSegments;
+
+    private final long mMaxSize;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mPutCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * 取最大内存的8分之一作为缓存
+     */
+    public BoundedMemCache() {
+        this(Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public BoundedMemCache(long maxBytes) {
+        this(maxBytes, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxBytes 缓存的最大字节数
+     * @param stripes 分段数，会向上取整为2的幂
+     */
+    public BoundedMemCache(long maxBytes, int stripes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        int segmentCount = 1;
+        while (segmentCount < stripes) {
+            segmentCount <<= 1;
+        }
+        mMaxSize = maxBytes;
+        mSegments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment(Math.max(1, maxBytes / segmentCount));
+        }
+    }
+
+    @Override
+    public Response get(String key) {
+        Response response = segmentFor(key).get(key);
+        if (response != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return response;
+    }
+
+    @Override
+    public void put(String key, Response value) {
+        mPutCount.incrementAndGet();
+        segmentFor(key).put(key, value, sizeOf(key, value));
+    }
+
+    @Override
+    public void remove(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void evictAll() {
+        for (Segment segment : mSegments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 计算缓存项占用的字节数，包括key、body与所有header
+     */
+    protected long sizeOf(String key, Response value) {
+        long size = ENTRY_OVERHEAD + key.length() * 2L;
+        byte[] rawData = value.getRawData();
+        if (rawData != null) {
+            size += rawData.length;
+        }
+        for (Header header : value.getAllHeaders()) {
+            size += HEADER_OVERHEAD;
+            size += header.getName().length() * 2L;
+            size += header.getValue() != null ? header.getValue().length() * 2L : 0;
+        }
+        String reason = value.getMessage();
+        if (reason != null) {
+            size += reason.length() * 2L;
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[h & (mSegments.length - 1)];
+    }
+
+    /**
+     * 当前缓存占用的字节数
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public long hitCount() {
+        return mHitCount.get();
+    }
+
+    public long missCount() {
+        return mMissCount.get();
+    }
+
+    public long putCount() {
+        return mPutCount.get();
+    }
+
+    public long evictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = hitCount();
+        long accesses = hits + missCount();
+        long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return "BoundedMemCache[size=" + size() + ",maxSize=" + mMaxSize + ",hits=" + hits
+                + ",misses=" + missCount() + ",evictions=" + evictionCount() + ",hitRate=" + hitPercent + "%]";
+    }
+
+    /**
+     * 缓存分段，拥有独立的锁与LRU顺序
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private final long mMaxSize;
+
+        private long mSize = 0;
+
+        Segment(long maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        synchronized Response get(String key) {
+            Entry entry = mEntries.get(key);
+            return entry != null ? entry.response : null;
+        }
+
+        synchronized void put(String key, Response response, long size) {
+            Entry previous = mEntries.remove(key);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            //单个结果超过分段的大小，不缓存
+            if (size > mMaxSize) {
+                return;
+            }
+            mEntries.put(key, new Entry(response, size));
+            mSize += size;
+            trimToSize();
+        }
+
+        synchronized void remove(String key) {
+            Entry previous = mEntries.remove(key);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+        }
+
+        synchronized void clear() {
+            mEntries.clear();
+            mSize = 0;
+        }
+
+        synchronized long size() {
+            return mSize;
+        }
+
+        /**
+         * 淘汰最久没有使用的缓存，直到大小不超过上限
+         */
+        private void trimToSize() {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mSize > mMaxSize && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                iterator.remove();
+                mSize -= eldest.size;
+                mEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Response response;
+        final long size;
+
+        Entry(Response response, long size) {
+            this.response = response;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mecury.netlibrary.cache;
+
+import java.util.Locale;
+
+/**
+ * Cache-Control头部的解析结果，参考okhttp3.CacheControl，只保留本地缓存需要的指令
+ */
+public final class CacheControl {
+
+    private boolean mNoCache;
+    private boolean mNoStore;
+    private int mMaxAgeSeconds = -1;
+    private boolean mIsPrivate;
+    private boolean mIsPublic;
+    private boolean mMustRevalidate;
+    private int mMaxStaleSeconds = -1;
+    private int mMinFreshSeconds = -1;
+    private boolean mOnlyIfCached;
+
+    private CacheControl() {
+
+    }
+
+    /**
+     * 解析Cache-Control与Pragma的值，任意一个参数可以为null
+     */
+    public static CacheControl parse(String cacheControl, String pragma) {
+        CacheControl result = new CacheControl();
+        if (pragma != null && pragma.toLowerCase(Locale.US).contains("no-cache")) {
+            result.mNoCache = true;
+        }
+        if (cacheControl == null) {
+            return result;
+        }
+        for (String directive : cacheControl.split(",")) {
+            String name = directive.trim();
+            String value = null;
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                value = name.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                name = name.substring(0, eq).trim();
+            }
+            name = name.toLowerCase(Locale.US);
+            if ("no-cache".equals(name)) {
+                result.mNoCache = true;
+            } else if ("no-store".equals(name)) {
+                result.mNoStore = true;
+            } else if ("max-age".equals(name)) {
+                result.mMaxAgeSeconds = parseSeconds(value, -1);
+            } else if ("private".equals(name)) {
+                result.mIsPrivate = true;
+            } else if ("public".equals(name)) {
+                result.mIsPublic = true;
+            } else if ("must-revalidate".equals(name)) {
+                result.mMustRevalidate = true;
+            } else if ("max-stale".equals(name)) {
+                result.mMaxStaleSeconds = parseSeconds(value, Integer.MAX_VALUE);
+            } else if ("min-fresh".equals(name)) {
+                result.mMinFreshSeconds = parseSeconds(value, -1);
+            } else if ("only-if-cached".equals(name)) {
+                result.mOnlyIfCached = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 解析秒数，超出int范围时取最大值，格式错误时返回defaultValue
+     */
+    static int parseSeconds(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            if (seconds > Integer.MAX_VALUE) {
+                return Integer.MAX_VALUE;
+            }
+            return seconds < 0 ? 0 : (int) seconds;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean noCache() {
+        return mNoCache;
+    }
+
+    public boolean noStore() {
+        return mNoStore;
+    }
+
+    public int maxAgeSeconds() {
+        return mMaxAgeSeconds;
+    }
+
+    public boolean isPrivate() {
+        return mIsPrivate;
+    }
+
+    public boolean isPublic() {
+        return mIsPublic;
+    }
+
+    public boolean mustRevalidate() {
+        return mMustRevalidate;
+    }
+
+    public int maxStaleSeconds() {
+        return mMaxStaleSeconds;
+    }
+
+    public int minFreshSeconds() {
+        return mMinFreshSeconds;
+    }
+
+    public boolean onlyIfCached() {
+        return mOnlyIfCached;
+    }
+}
@@ -0,0 +1,412 @@
+package com.mecury.netlibrary.cache;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.Header;
+
+import java.net.HttpURLConnection;
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据HTTP缓存语义决定使用缓存、请求网络还是发起条件请求，逻辑与okhttp3.internal.cache.CacheStrategy一致。
+ * <p>
+ * networkHeaders为null表示不需要请求网络，否则为请求网络时需要附加的条件header(If-None-Match/If-Modified-Since)；
+ * cacheResponse为null表示不使用缓存，否则为直接返回或者需要验证的缓存结果。
+ * </p>
+ */
+public final class CacheStrategy {
+
+    public static final int HTTP_PERM_REDIRECT = 308;
+    public static final int HTTP_TEMP_REDIRECT = 307;
+
+    /**
+     * 请求网络时附加的header，为null表示不请求网络
+     */
+    public final Map<String, String> networkHeaders;
+
+    /**
+     * 直接返回或者需要验证的缓存结果，为null表示不使用缓存
+     */
+    public final Response cacheResponse;
+
+    private CacheStrategy(Map<String, String> networkHeaders, Response cacheResponse) {
+        this.networkHeaders = networkHeaders;
+        this.cacheResponse = cacheResponse;
+    }
+
+    /**
+     * 只有GET请求的结果可以查询与写入缓存，与okhttp3.Cache一致
+     */
+    public static boolean isCacheableMethod(Request<?> request) {
+        return request.getHttpMethod() == Request.HttpMethod.GET;
+    }
+
+    /**
+     * 会修改服务端数据的请求，成功后同一个url的缓存需要失效，参考okhttp3.Cache.invalidate()
+     */
+    public static boolean invalidatesCache(Request<?> request) {
+        switch (request.getHttpMethod()) {
+            case POST:
+            case PUT:
+            case DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 该结果是否可以缓存
+     */
+    public static boolean isCacheable(Response response, Request<?> request) {
+        if (!isCacheableMethod(request) || !response.isBodyComplete()) {
+            return false;
+        }
+        switch (response.getStatusCode()) {
+            case HttpURLConnection.HTTP_OK:
+            case HttpURLConnection.HTTP_NOT_AUTHORITATIVE:
+            case HttpURLConnection.HTTP_NO_CONTENT:
+            case HttpURLConnection.HTTP_MULT_CHOICE:
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_BAD_METHOD:
+            case HttpURLConnection.HTTP_GONE:
+            case HttpURLConnection.HTTP_REQ_TOO_LONG:
+            case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+            case HTTP_PERM_REDIRECT:
+                break;
+
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HTTP_TEMP_REDIRECT:
+                //只有明确指定了过期时间的临时重定向才能缓存
+                CacheControl cacheControl = cacheControlOf(response);
+                if (response.getFirstHeader("Expires") != null
+                        || cacheControl.maxAgeSeconds() != -1
+                        || cacheControl.isPublic()
+                        || cacheControl.isPrivate()) {
+                    break;
+                }
+                return false;
+
+            default:
+                return false;
+        }
+
+        //请求或者结果中的no-store表示不能缓存
+        return !cacheControlOf(response).noStore() && !cacheControlOf(request).noStore();
+    }
+
+    /**
+     * 结果的Cache-Control
+     */
+    public static CacheControl cacheControlOf(Response response) {
+        return CacheControl.parse(joinHeaders(response.getHeaders("Cache-Control")),
+                joinHeaders(response.getHeaders("Pragma")));
+    }
+
+    /**
+     * 请求的Cache-Control
+     */
+    public static CacheControl cacheControlOf(Request<?> request) {
+        return CacheControl.parse(headerValue(request.getHeaders(), "Cache-Control"),
+                headerValue(request.getHeaders(), "Pragma"));
+    }
+
+    private static String joinHeaders(Header[] headers) {
+        if (headers == null || headers.length == 0) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Header header : headers) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(header.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 忽略大小写查找请求header
+     */
+    static String headerValue(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 服务端返回304时，将缓存结果与304结果的header合并，body使用缓存的body
+     */
+    public static Response combine(Response cached, Response network) {
+        Response combined = new Response(cached.getStatusLine());
+        for (Header header : cached.getAllHeaders()) {
+            String name = header.getName();
+            //丢弃1xx的Warning
+            if ("Warning".equalsIgnoreCase(name) && header.getValue().startsWith("1")) {
+                continue;
+            }
+            if (!isEndToEnd(name) || network.getFirstHeader(name) == null) {
+                combined.addHeader(header);
+            }
+        }
+        for (Header header : network.getAllHeaders()) {
+            String name = header.getName();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (isEndToEnd(name)) {
+                combined.addHeader(header);
+            }
+        }
+        combined.rewData = cached.getRawData();
+        combined.setRequestTimes(network.getSentRequestAtMillis(), network.getReceivedResponseAtMillis());
+        return combined;
+    }
+
+    /**
+     * 是否为端到端的header，逐跳的header不会从304结果中合并
+     */
+    private static boolean isEndToEnd(String fieldName) {
+        return !"Connection".equalsIgnoreCase(fieldName)
+                && !"Keep-Alive".equalsIgnoreCase(fieldName)
+                && !"Proxy-Authenticate".equalsIgnoreCase(fieldName)
+                && !"Proxy-Authorization".equalsIgnoreCase(fieldName)
+                && !"TE".equalsIgnoreCase(fieldName)
+                && !"Trailers".equalsIgnoreCase(fieldName)
+                && !"Transfer-Encoding".equalsIgnoreCase(fieldName)
+                && !"Upgrade".equalsIgnoreCase(fieldName);
+    }
+
+    public static class Factory {
+        final long nowMillis;
+        final Request<?> request;
+        final Response cacheResponse;
+
+        /**
+         * 服务端返回缓存结果的时间
+         */
+        private Date servedDate;
+        private String servedDateString;
+
+        /**
+         * 缓存结果的最后修改时间
+         */
+        private Date lastModified;
+        private String lastModifiedString;
+
+        /**
+         * 缓存结果的过期时间，与max-age同时存在时使用max-age
+         */
+        private Date expires;
+
+        /**
+         * 发出请求与收到结果的本地时间
+         */
+        private long sentRequestMillis;
+        private long receivedResponseMillis;
+
+        private String etag;
+
+        private int ageSeconds = -1;
+
+        public Factory(long nowMillis, Request<?> request, Response cacheResponse) {
+            this.nowMillis = nowMillis;
+            this.request = request;
+            this.cacheResponse = cacheResponse;
+
+            if (cacheResponse != null) {
+                this.sentRequestMillis = cacheResponse.getSentRequestAtMillis();
+                this.receivedResponseMillis = cacheResponse.getReceivedResponseAtMillis();
+                for (Header header : cacheResponse.getAllHeaders()) {
+                    String fieldName = header.getName();
+                    String value = header.getValue();
+                    if ("Date".equalsIgnoreCase(fieldName)) {
+                        servedDate = parseDate(value);
+                        servedDateString = value;
+                    } else if ("Expires".equalsIgnoreCase(fieldName)) {
+                        expires = parseDate(value);
+                    } else if ("Last-Modified".equalsIgnoreCase(fieldName)) {
+                        lastModified = parseDate(value);
+                        lastModifiedString = value;
+                    } else if ("ETag".equalsIgnoreCase(fieldName)) {
+                        etag = value;
+                    } else if ("Age".equalsIgnoreCase(fieldName)) {
+                        ageSeconds = CacheControl.parseSeconds(value, -1);
+                    }
+                }
+            }
+        }
+
+        public CacheStrategy get() {
+            CacheStrategy candidate = getCandidate();
+
+            if (candidate.networkHeaders != null && cacheControlOf(request).onlyIfCached()) {
+                //不允许请求网络，而缓存又不可用
+                return new CacheStrategy(null, null);
+            }
+            return candidate;
+        }
+
+        private CacheStrategy getCandidate() {
+            Map<String, String> noConditions = Collections.emptyMap();
+            if (cacheResponse == null) {
+                return new CacheStrategy(noConditions, null);
+            }
+
+            if (!isCacheable(cacheResponse, request)) {
+                return new CacheStrategy(noConditions, null);
+            }
+
+            CacheControl requestCaching = cacheControlOf(request);
+            if (requestCaching.noCache() || hasConditions(request)) {
+                return new CacheStrategy(noConditions, null);
+            }
+
+            long ageMillis = cacheResponseAge();
+            long freshMillis = computeFreshnessLifetime();
+
+            if (requestCaching.maxAgeSeconds() != -1) {
+                freshMillis = Math.min(freshMillis, TimeUnit.SECONDS.toMillis(requestCaching.maxAgeSeconds()));
+            }
+
+            long minFreshMillis = 0;
+            if (requestCaching.minFreshSeconds() != -1) {
+                minFreshMillis = TimeUnit.SECONDS.toMillis(requestCaching.minFreshSeconds());
+            }
+
+            long maxStaleMillis = 0;
+            CacheControl responseCaching = cacheControlOf(cacheResponse);
+            if (!responseCaching.mustRevalidate() && requestCaching.maxStaleSeconds() != -1) {
+                maxStaleMillis = TimeUnit.SECONDS.toMillis(requestCaching.maxStaleSeconds());
+            }
+
+            if (!responseCaching.noCache() && ageMillis + minFreshMillis < freshMillis + maxStaleMillis) {
+                return new CacheStrategy(null, cacheResponse);
+            }
+
+            //缓存已经过期，添加验证条件，如果条件满足服务端只返回304而不会返回body
+            String conditionName;
+            String conditionValue;
+            if (etag != null) {
+                conditionName = "If-None-Match";
+                conditionValue = etag;
+            } else if (lastModified != null) {
+                conditionName = "If-Modified-Since";
+                conditionValue = lastModifiedString;
+            } else if (servedDate != null) {
+                conditionName = "If-Modified-Since";
+                conditionValue = servedDateString;
+            } else {
+                return new CacheStrategy(noConditions, null);
+            }
+
+            Map<String, String> conditions = new HashMap<String, String>(1);
+            conditions.put(conditionName, conditionValue);
+            return new CacheStrategy(conditions, cacheResponse);
+        }
+
+        /**
+         * 缓存结果从服务端返回时开始计算的有效时长
+         */
+        private long computeFreshnessLifetime() {
+            CacheControl responseCaching = cacheControlOf(cacheResponse);
+            if (responseCaching.maxAgeSeconds() != -1) {
+                return TimeUnit.SECONDS.toMillis(responseCaching.maxAgeSeconds());
+            } else if (expires != null) {
+                long servedMillis = servedDate != null ? servedDate.getTime() : receivedResponseMillis;
+                long delta = expires.getTime() - servedMillis;
+                return delta > 0 ? delta : 0;
+            } else if (lastModified != null && request.getUrl().indexOf('?') < 0) {
+                //与浏览器一致，有效时长默认为结果返回时已存在时长的10%，带查询参数的url不使用该规则
+                long servedMillis = servedDate != null ? servedDate.getTime() : sentRequestMillis;
+                long delta = servedMillis - lastModified.getTime();
+                return delta > 0 ? (delta / 10) : 0;
+            }
+            return 0;
+        }
+
+        /**
+         * 缓存结果当前的年龄，参考RFC 2616 13.2.3
+         */
+        private long cacheResponseAge() {
+            long apparentReceivedAge = servedDate != null
+                    ? Math.max(0, receivedResponseMillis - servedDate.getTime())
+                    : 0;
+            long receivedAge = ageSeconds != -1
+                    ? Math.max(apparentReceivedAge, TimeUnit.SECONDS.toMillis(ageSeconds))
+                    : apparentReceivedAge;
+            long responseDuration = receivedResponseMillis - sentRequestMillis;
+            long residentDuration = nowMillis - receivedResponseMillis;
+            return receivedAge + responseDuration + residentDuration;
+        }
+
+        /**
+         * 请求自己带有验证条件时，不使用缓存
+         */
+        private static boolean hasConditions(Request<?> request) {
+            return headerValue(request.getHeaders(), "If-Modified-Since") != null
+                    || headerValue(request.getHeaders(), "If-None-Match") != null;
+        }
+    }
+
+    /**
+     * HTTP日期的格式，第一个为标准格式，其余为兼容的旧格式
+     */
+    private static final String[] DATE_FORMATS = new String[] {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            "EEE MMM d HH:mm:ss yyyy",
+            "EEE, dd-MMM-yyyy HH:mm:ss z",
+            "EEE, dd MMM yyyy HH:mm:ss z",
+    };
+
+    private static final ThreadLocal<DateFormat> STANDARD_DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return newDateFormat(DATE_FORMATS[0]);
+        }
+    };
+
+    private static DateFormat newDateFormat(String pattern) {
+        DateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setLenient(false);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * 解析HTTP日期，格式错误时返回null
+     */
+    public static Date parseDate(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        ParsePosition position = new ParsePosition(0);
+        Date date = STANDARD_DATE_FORMAT.get().parse(value, position);
+        if (position.getIndex() == value.length()) {
+            return date;
+        }
+        for (int i = 1; i < DATE_FORMATS.length; i++) {
+            position.setIndex(0);
+            date = newDateFormat(DATE_FORMATS[i]).parse(value, position);
+            if (position.getIndex() != 0) {
+                return date;
+            }
+        }
+        return null;
+    }
+}
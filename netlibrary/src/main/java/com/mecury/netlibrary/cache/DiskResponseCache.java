@@ -0,0 +1,467 @@
+package com.mecury.netlibrary.cache;
+
+import android.util.Log;
+
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 持久化的Response缓存，参考okhttp3.internal.cache.DiskLruCache的日志结构。
+ * <p>
+ * 每个缓存项保存为一个文件，文件名为缓存key的MD5。所有的操作都追加到journal文件中：
+ * CLEAN表示缓存项写入完成，READ表示缓存项被访问，REMOVE表示缓存项被删除。
+ * 启动时重放journal即可恢复LRU顺序，冗余的记录过多时重写journal。总大小超过上限时淘汰最久没有访问的缓存项。
+ * 启动时删除journal中没有CLEAN记录的文件，例如重命名完成之后、写入CLEAN之前进程被杀死留下的缓存项文件。
+ * </p>
+ */
+public class DiskResponseCache implements Cache<String, Response> {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String MAGIC = "com.mecury.netlibrary.DiskResponseCache";
+    static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 缓存项文件的格式版本
+     */
+    private static final int ENTRY_MAGIC = 0x534e4331;
+
+    /**
+     * journal中冗余记录超过该值时重写journal
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+
+    private final long mMaxSize;
+
+    /**
+     * 缓存项的文件名与大小，按照访问顺序排列
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+    private long mSize = 0;
+
+    private Writer mJournalWriter;
+
+    private int mRedundantOpCount = 0;
+
+    private boolean isInitialized = false;
+
+    /**
+     * @param directory 缓存目录，该目录只能被一个DiskResponseCache使用
+     * @param maxSize 缓存的最大字节数
+     */
+    public DiskResponseCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 第一次访问时读取journal,恢复缓存项
+     */
+    private synchronized void initialize() throws IOException {
+        if (isInitialized) {
+            return;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Can not create cache directory " + mDirectory);
+        }
+        File journalFile = new File(mDirectory, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            try {
+                readJournal(journalFile);
+                removeMissingEntries();
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), "US-ASCII"));
+            } catch (IOException e) {
+                Log.w("", "### 缓存journal损坏，清空缓存 : " + e.getMessage());
+                deleteContents();
+            }
+        }
+        if (mJournalWriter == null) {
+            rebuildJournal();
+        }
+        deleteUntrackedFiles();
+        isInitialized = true;
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())
+                    || !"".equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        String name = parts[1];
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            Long previous = mEntries.put(name, Long.parseLong(parts[2]));
+            mSize += Long.parseLong(parts[2]) - (previous != null ? previous : 0);
+        } else if (READ.equals(parts[0])) {
+            mEntries.get(name);
+        } else if (REMOVE.equals(parts[0])) {
+            Long previous = mEntries.remove(name);
+            if (previous != null) {
+                mSize -= previous;
+            }
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * 删除journal中存在但是文件已经丢失的缓存项
+     */
+    private void removeMissingEntries() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (!entryFile(entry.getKey()).exists()) {
+                mSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 根据当前的缓存项重写journal，去掉冗余的记录
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            closeQuietly(mJournalWriter);
+        }
+        File tempFile = new File(mDirectory, JOURNAL_FILE_TEMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "US-ASCII"));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File journalFile = new File(mDirectory, JOURNAL_FILE);
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Can not rename " + tempFile + " to " + journalFile);
+        }
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+        mRedundantOpCount = 0;
+    }
+
+    /**
+     * 删除临时文件，以及没有CLEAN记录的缓存项文件，这些文件没有计入缓存大小，之后也不会被淘汰
+     */
+    private void deleteUntrackedFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (fileName.endsWith(ENTRY_SUFFIX)) {
+                String name = fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length());
+                if (!mEntries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void deleteContents() {
+        mEntries.clear();
+        mSize = 0;
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 追加journal记录。READ只影响LRU顺序，丢失也不会导致缓存不一致，不立即写入磁盘，
+     * 与下一条CLEAN或者REMOVE记录一起写入
+     */
+    private void appendJournal(String op, String name, long size) throws IOException {
+        if (CLEAN.equals(op)) {
+            mJournalWriter.write(op + " " + name + " " + size + "\n");
+        } else {
+            mJournalWriter.write(op + " " + name + "\n");
+        }
+        if (!READ.equals(op)) {
+            mJournalWriter.flush();
+        }
+    }
+
+    @Override
+    public Response get(String key) {
+        String name = hashKey(key);
+        synchronized (this) {
+            try {
+                initialize();
+                if (mEntries.get(name) == null) {
+                    return null;
+                }
+                mRedundantOpCount++;
+                appendJournal(READ, name, 0);
+                compactIfNeeded();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        //读取文件不需要持有锁，缓存项是通过重命名原子替换的
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile(name))));
+            return readResponse(in, key);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w("", "### 缓存文件损坏 : " + e.getMessage());
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void put(String key, Response value) {
+        String name = hashKey(key);
+        //不同线程同时写入同一个key时使用不同的临时文件
+        File tempFile = new File(mDirectory, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            initialize();
+            //先写入临时文件，完成后再重命名
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                writeResponse(out, key, value);
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                File entryFile = entryFile(name);
+                if (!tempFile.renameTo(entryFile)) {
+                    throw new IOException("Can not rename " + tempFile + " to " + entryFile);
+                }
+                long size = entryFile.length();
+                Long previous = mEntries.put(name, size);
+                if (previous != null) {
+                    mSize -= previous;
+                    mRedundantOpCount++;
+                }
+                mSize += size;
+                appendJournal(CLEAN, name, size);
+                trimToSize();
+                compactIfNeeded();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        String name = hashKey(key);
+        try {
+            initialize();
+            removeEntry(name);
+            compactIfNeeded();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void removeEntry(String name) throws IOException {
+        Long previous = mEntries.remove(name);
+        if (previous == null) {
+            return;
+        }
+        entryFile(name).delete();
+        mSize -= previous;
+        mRedundantOpCount += 2;
+        appendJournal(REMOVE, name, 0);
+    }
+
+    /**
+     * 淘汰最久没有访问的缓存项
+     */
+    private void trimToSize() throws IOException {
+        while (mSize > mMaxSize && !mEntries.isEmpty()) {
+            String eldest = mEntries.keySet().iterator().next();
+            removeEntry(eldest);
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 清空所有缓存
+     */
+    public synchronized void evictAll() {
+        try {
+            initialize();
+            deleteContents();
+            rebuildJournal();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    private File entryFile(String name) {
+        return new File(mDirectory, name + ENTRY_SUFFIX);
+    }
+
+    /**
+     * 缓存项的格式：版本、key、状态行、请求时间、header、body
+     */
+    private static void writeResponse(DataOutputStream out, String key, Response response) throws IOException {
+        out.writeInt(ENTRY_MAGIC);
+        out.writeUTF(key);
+        StatusLine statusLine = response.getStatusLine();
+        ProtocolVersion protocol = statusLine.getProtocolVersion();
+        out.writeUTF(protocol.getProtocol());
+        out.writeInt(protocol.getMajor());
+        out.writeInt(protocol.getMinor());
+        out.writeInt(statusLine.getStatusCode());
+        out.writeUTF(statusLine.getReasonPhrase() != null ? statusLine.getReasonPhrase() : "");
+        out.writeLong(response.getSentRequestAtMillis());
+        out.writeLong(response.getReceivedResponseAtMillis());
+        Header[] headers = response.getAllHeaders();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(header.getValue() != null ? header.getValue() : "");
+        }
+        byte[] body = response.getRawData();
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    private static Response readResponse(DataInputStream in, String key) throws IOException {
+        if (in.readInt() != ENTRY_MAGIC) {
+            throw new IOException("unexpected entry format");
+        }
+        if (!key.equals(in.readUTF())) {
+            //MD5冲突，当作未命中
+            throw new FileNotFoundException("key mismatch");
+        }
+        ProtocolVersion protocol = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+        Response response = new Response(new BasicStatusLine(protocol, in.readInt(), in.readUTF()));
+        long sentRequestMillis = in.readLong();
+        long receivedResponseMillis = in.readLong();
+        response.setRequestTimes(sentRequestMillis, receivedResponseMillis);
+        int headerCount = in.readInt();
+        for (int i = 0; i < headerCount; i++) {
+            response.addHeader(in.readUTF(), in.readUTF());
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        response.rewData = body;
+        return response;
+    }
+
+    /**
+     * 缓存key可能很长并且包含换行，使用MD5作为文件名
+     */
+    static String hashKey(String key) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
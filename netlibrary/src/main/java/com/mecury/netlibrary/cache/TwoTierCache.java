@@ -0,0 +1,151 @@
+package com.mecury.netlibrary.cache;
+
+import com.mecury.netlibrary.base.Response;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内存 + 磁盘两级缓存。
+ * <p>
+ * 读取时先查内存，未命中再查磁盘，磁盘命中的结果会提升到内存中；
+ * 写入时同步写入内存，磁盘的写入与删除在单独的线程中按顺序异步执行，不会阻塞执行请求的线程。
+ * 应用重启之后可以直接从磁盘读取缓存，而不需要重新请求网络。
+ * </p>
+ */
+public class TwoTierCache implements Cache<String, Response> {
+
+    private final Cache<String, Response> mMemoryCache;
+
+    private final DiskResponseCache mDiskCache;
+
+    /**
+     * 磁盘写入线程，保证同一个key的写入与删除按顺序执行
+     */
+    private final ExecutorService mDiskExecutor;
+
+    /**
+     * 每个key还没有执行完的磁盘写入与删除的次数，大于0时磁盘中的数据可能已经过期，读取时需要跳过。
+     * 计数减到0的AtomicInteger不再使用，从map中移除
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> mPendingWrites =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * @param directory 磁盘缓存目录
+     * @param diskMaxSize 磁盘缓存的最大字节数
+     */
+    public TwoTierCache(File directory, long diskMaxSize) {
+        this(new BoundedMemCache(), new DiskResponseCache(directory, diskMaxSize));
+    }
+
+    public TwoTierCache(Cache<String, Response> memoryCache, DiskResponseCache diskCache) {
+        mMemoryCache = memoryCache;
+        mDiskCache = diskCache;
+        mDiskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimpleNet-DiskCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Response get(String key) {
+        Response response = mMemoryCache.get(key);
+        if (response != null || hasPendingWrites(key)) {
+            return response;
+        }
+        response = mDiskCache.get(key);
+        //读取磁盘期间有新的写入或者删除时，读到的可能是旧的数据
+        if (response == null || hasPendingWrites(key)) {
+            return null;
+        }
+        //提升到内存中
+        mMemoryCache.put(key, response);
+        return response;
+    }
+
+    @Override
+    public void put(final String key, final Response value) {
+        beginWrite(key);
+        mMemoryCache.put(key, value);
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDiskCache.put(key, value);
+                } finally {
+                    endWrite(key);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String key) {
+        beginWrite(key);
+        mMemoryCache.remove(key);
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDiskCache.remove(key);
+                } finally {
+                    endWrite(key);
+                }
+            }
+        });
+    }
+
+    private boolean hasPendingWrites(String key) {
+        return mPendingWrites.containsKey(key);
+    }
+
+    /**
+     * 增加key还没有执行完的磁盘操作数
+     */
+    private void beginWrite(String key) {
+        while (true) {
+            AtomicInteger pending = mPendingWrites.get(key);
+            if (pending == null) {
+                if (mPendingWrites.putIfAbsent(key, new AtomicInteger(1)) == null) {
+                    return;
+                }
+                continue;
+            }
+            int count = pending.get();
+            if (count > 0 && pending.compareAndSet(count, count + 1)) {
+                return;
+            }
+            if (count <= 0) {
+                //计数已经减到0，等待其被移除后重新创建
+                mPendingWrites.remove(key, pending);
+            }
+        }
+    }
+
+    /**
+     * 磁盘操作执行完毕，计数减到0时移除
+     */
+    private void endWrite(String key) {
+        AtomicInteger pending = mPendingWrites.get(key);
+        if (pending != null && pending.decrementAndGet() == 0) {
+            mPendingWrites.remove(key, pending);
+        }
+    }
+
+    public Cache<String, Response> getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    public DiskResponseCache getDiskCache() {
+        return mDiskCache;
+    }
+}
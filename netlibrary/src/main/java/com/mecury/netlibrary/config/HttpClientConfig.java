@@ -5,16 +5,21 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 
 /**
  * Created by 海飞 on 2016/8/5.
- * 这是针对HttpClientStack执行请求时为Https请求配置SSLSocketFactory
+ * 这是针对HttpClientStack执行请求时为Https请求配置SSLSocketFactory。
+ * 每个HttpClientStack可以使用自己的配置。userAgent与SSLSocketFactory在创建HttpClientStack时读取，之后的修改不会生效；
+ * 超时时间在每次请求时读取，修改后对之后的请求生效
  */
 public class HttpClientConfig extends HttpConfig {
     private static HttpClientConfig sConfig = new HttpClientConfig();
-    SSLSocketFactory mSslSocketFactory;
+    volatile SSLSocketFactory mSslSocketFactory;
 
-    private HttpClientConfig(){
+    public HttpClientConfig(){
 
     }
 
+    /**
+     * 默认的配置，没有指定配置的HttpClientStack共享该配置
+     */
     public static HttpClientConfig getConfig(){
         return sConfig;
     }
@@ -22,10 +27,18 @@ public class HttpClientConfig extends HttpConfig {
     /**
      * 配置https请求的SSLSocketFactory
      */
-    public void getHttpsConfig(SSLSocketFactory sslSocketFactory){
+    public void setHttpsConfig(SSLSocketFactory sslSocketFactory){
         mSslSocketFactory = sslSocketFactory;
     }
 
+    /**
+     * @deprecated 使用{@link #setHttpsConfig(SSLSocketFactory)}
+     */
+    @Deprecated
+    public void getHttpsConfig(SSLSocketFactory sslSocketFactory){
+        setHttpsConfig(sslSocketFactory);
+    }
+
     public SSLSocketFactory getSslSocketFactory(){
         return mSslSocketFactory;
     }
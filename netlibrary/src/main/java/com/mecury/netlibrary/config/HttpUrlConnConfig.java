@@ -2,35 +2,60 @@ package com.mecury.netlibrary.config;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
 
 /**
  * Created by 海飞 on 2016/8/5.
+ * HttpURLConnStack与OkHttpStack的配置，每个HttpStack可以使用自己的配置，
+ * Https配置只应用在该HttpStack建立的连接上，不会修改HttpsURLConnection的全局默认值
  */
 public class HttpUrlConnConfig extends HttpConfig {
 
     private static HttpUrlConnConfig sConfig = new HttpUrlConnConfig();
 
-    private SSLSocketFactory mSslSocketFactory = null;
-    private HostnameVerifier mHostnameVerifier = null;
+    private volatile SSLSocketFactory mSslSocketFactory = null;
+    private volatile HostnameVerifier mHostnameVerifier = null;
+    private volatile X509TrustManager mTrustManager = null;
 
-    private HttpUrlConnConfig(){
+    public HttpUrlConnConfig(){
 
     }
 
+    /**
+     * 默认的配置，没有指定配置的HttpStack共享该配置
+     */
     public static HttpUrlConnConfig getConfig(){
         return sConfig;
     }
 
     /**
-     * 配置https请求的SSLSocketFactory与HostnameVerifier
+     * 配置https请求的SSLSocketFactory与HostnameVerifier，SSLSocketFactory应该只创建一次，
+     * 所有连接复用同一个实例才能共享TLS会话缓存
      * @param sslSocketFactory
-     * @param hostnameVerifier
+     * @param hostnameVerifier 为null时使用系统默认的校验
      */
     public void setHttpsConfig(SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier){
+        setHttpsConfig(sslSocketFactory, null, hostnameVerifier);
+    }
+
+    /**
+     * 配置https请求的SSLSocketFactory、创建它时使用的TrustManager与HostnameVerifier。
+     * OkHttpStack需要TrustManager才能使用自定义的SSLSocketFactory
+     * @param sslSocketFactory
+     * @param trustManager 创建sslSocketFactory时使用的TrustManager
+     * @param hostnameVerifier 为null时使用系统默认的校验
+     */
+    public void setHttpsConfig(SSLSocketFactory sslSocketFactory, X509TrustManager trustManager,
+                               HostnameVerifier hostnameVerifier){
         mSslSocketFactory = sslSocketFactory;
+        mTrustManager = trustManager;
         mHostnameVerifier = hostnameVerifier;
     }
 
+    public X509TrustManager getTrustManager(){
+        return mTrustManager;
+    }
+
     public HostnameVerifier getHostnameVerifier(){
         return mHostnameVerifier;
     }
@@ -0,0 +1,64 @@
+package com.mecury.netlibrary.core;
+
+import com.mecury.netlibrary.base.Request;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求超时检测，为每个设置了时限的请求在截止时间安排一个检测任务，请求提前结束时取消该任务。
+ * 检测任务运行在RequestQueue的定时线程中
+ */
+class DeadlineWatchdog {
+
+    private final RequestQueue mRequestQueue;
+
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * 请求与其检测任务，按照引用区分
+     */
+    private final Map<Request<?>, ScheduledFuture<?>> mWatches = new IdentityHashMap<Request<?>, ScheduledFuture<?>>();
+
+    DeadlineWatchdog(RequestQueue queue, ScheduledExecutorService executor) {
+        mRequestQueue = queue;
+        mExecutor = executor;
+    }
+
+    /**
+     * 在请求的截止时间检测是否超时，已经在检测的请求不会重复安排
+     */
+    void watch(final Request<?> request) {
+        synchronized (mWatches) {
+            if (mWatches.containsKey(request)) {
+                return;
+            }
+            ScheduledFuture<?> future = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mWatches) {
+                        mWatches.remove(request);
+                    }
+                    mRequestQueue.onDeadlineExpired(request);
+                }
+            }, Math.max(0, request.getRemainingTimeMs()), TimeUnit.MILLISECONDS);
+            mWatches.put(request, future);
+        }
+    }
+
+    /**
+     * 请求已经结束，取消检测任务
+     */
+    void unwatch(Request<?> request) {
+        ScheduledFuture<?> future;
+        synchronized (mWatches) {
+            future = mWatches.remove(request);
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.mecury.netlibrary.core;
+
+import com.mecury.netlibrary.base.Request;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 有上限的弹性执行策略。
+ * <p>
+ * 由一个分发线程从请求调度器中取出请求，交给线程池执行。分发线程只有在拿到执行许可之后才会take()，
+ * 因此请求仍然严格按照调度器的顺序出队；线程池中的线程空闲超过keepAlive时间后会被回收，
+ * 适合大量阻塞在网络IO上的请求，并发数不再受限于CPU核心数。
+ * </p>
+ */
+public class ElasticExecutionStrategy implements ExecutionStrategy {
+
+    /**
+     * 默认的线程空闲回收时间
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 60 * 1000;
+
+    /**
+     * 最大并发执行的请求数
+     */
+    private volatile int mMaxConcurrency;
+
+    /**
+     * 线程空闲回收时间
+     */
+    private long mKeepAliveMs;
+
+    /**
+     * 是否为每个请求使用一个虚拟线程
+     */
+    private boolean mUseVirtualThreads;
+
+    /**
+     * 执行请求的线程池
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * 执行许可，保证同时执行的请求数不超过mMaxConcurrency
+     */
+    private ResizableSemaphore mPermits;
+
+    /**
+     * 分发线程
+     */
+    private Thread mDispatcher;
+
+    private volatile boolean isStop = false;
+
+    public ElasticExecutionStrategy(int maxConcurrency){
+        this(maxConcurrency, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    public ElasticExecutionStrategy(int maxConcurrency, long keepAliveMs){
+        this(maxConcurrency, keepAliveMs, false);
+    }
+
+    /**
+     * @param maxConcurrency 最大并发执行的请求数
+     * @param keepAliveMs 线程空闲回收时间
+     * @param useVirtualThreads 是否为每个请求使用一个虚拟线程，运行时不支持时使用弹性线程池
+     */
+    public ElasticExecutionStrategy(int maxConcurrency, long keepAliveMs, boolean useVirtualThreads){
+        mMaxConcurrency = Math.max(1, maxConcurrency);
+        mKeepAliveMs = keepAliveMs;
+        mUseVirtualThreads = useVirtualThreads;
+    }
+
+    @Override
+    public synchronized void start(final RequestScheduler scheduler, final RequestPerformer performer) {
+        isStop = false;
+        final ResizableSemaphore permits = new ResizableSemaphore(mMaxConcurrency);
+        mPermits = permits;
+        final ExecutorService executor = createExecutor();
+        mExecutor = executor;
+        mDispatcher = new Thread("SimpleNet-Dispatcher"){
+            @Override
+            public void run() {
+                dispatch(scheduler, performer, executor, permits);
+            }
+        };
+        mDispatcher.start();
+    }
+
+    private ExecutorService createExecutor(){
+        if (mUseVirtualThreads){
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null){
+                return executor;
+            }
+        }
+        return createElasticPool();
+    }
+
+    /**
+     * 创建弹性线程池，线程数由执行许可限制，空闲线程超时后回收
+     */
+    private ExecutorService createElasticPool(){
+        final AtomicInteger threadNum = new AtomicInteger(0);
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, mKeepAliveMs, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SimpleNet-Worker-" + threadNum.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * 分发循环，先获取执行许可，再从调度器中取请求
+     */
+    private void dispatch(final RequestScheduler scheduler, final RequestPerformer performer,
+                          final ExecutorService executor, final Semaphore permits){
+        try{
+            while (!isStop){
+                permits.acquire();
+                final Request<?> request;
+                try{
+                    request = scheduler.take();
+                } catch (InterruptedException e) {
+                    permits.release();
+                    throw e;
+                }
+                try{
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try{
+                                performer.performRequest(request);
+                            }finally {
+                                scheduler.finish(request);
+                                permits.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //线程池已经关闭，将请求放回所在级别的队首
+                    permits.release();
+                    scheduler.requeue(request);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            //等待许可或者请求时被stop()中断，正常退出
+        }
+    }
+
+    /**
+     * 停止分发线程，线程池不再接受新的请求，已经交给线程池的请求继续执行完毕
+     */
+    @Override
+    public synchronized void stop() {
+        isStop = true;
+        if (mDispatcher != null){
+            mDispatcher.interrupt();
+        }
+        if (mExecutor != null){
+            mExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        Thread dispatcher;
+        ExecutorService executor;
+        synchronized (this){
+            dispatcher = mDispatcher;
+            executor = mExecutor;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        if (dispatcher != null){
+            dispatcher.join(Math.max(1, timeoutMs));
+            if (dispatcher.isAlive()){
+                return false;
+            }
+        }
+        return executor == null
+                || executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 调整最大并发数，调小时正在执行的请求不受影响，执行完毕后不再归还多出的许可
+     */
+    @Override
+    public synchronized void setConcurrency(int concurrency) {
+        int maxConcurrency = Math.max(1, concurrency);
+        int delta = maxConcurrency - mMaxConcurrency;
+        mMaxConcurrency = maxConcurrency;
+        if (mPermits == null){
+            return;
+        }
+        if (delta > 0){
+            mPermits.release(delta);
+        }else if (delta < 0){
+            mPermits.reducePermits(-delta);
+        }
+    }
+
+    @Override
+    public int getConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    public int getMaxConcurrency(){
+        return mMaxConcurrency;
+    }
+
+    /**
+     * 运行时是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported(){
+        return findVirtualThreadFactoryMethod() != null;
+    }
+
+    /**
+     * 通过反射创建Executors.newVirtualThreadPerTaskExecutor()，不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor(){
+        Method method = findVirtualThreadFactoryMethod();
+        if (method == null){
+            return null;
+        }
+        try {
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static Method findVirtualThreadFactoryMethod(){
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 可以减少许可数的Semaphore，许可数可以暂时为负数，之后归还的许可先抵消欠下的部分
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits){
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.mecury.netlibrary.core;
+
+/**
+ * 请求的执行策略，决定由哪些线程从请求调度器中取出请求并执行。
+ * 实现类必须按照调度器的出队顺序取请求，并在请求执行完毕后调用RequestScheduler.finish()
+ */
+public interface ExecutionStrategy {
+
+    /**
+     * 启动执行策略，开始从请求调度器中读取请求
+     * @param scheduler 请求调度器
+     * @param performer 请求执行者
+     */
+    public void start(RequestScheduler scheduler, RequestPerformer performer);
+
+    /**
+     * 停止执行策略，等待请求的线程立即退出，正在执行的请求不会被中断，执行完毕后线程退出。
+     * 还未执行的请求保留在调度器中，再次start()后继续执行
+     */
+    public void stop();
+
+    /**
+     * 等待stop()之后正在执行的请求执行完毕、线程全部退出
+     * @param timeoutMs 最长等待时间
+     * @return 线程是否已经全部退出
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException;
+
+    /**
+     * 调整并发执行的请求数，运行中也可以调整。调小时多出的线程执行完当前的请求后退出，不会丢弃请求
+     */
+    public void setConcurrency(int concurrency);
+
+    public int getConcurrency();
+}
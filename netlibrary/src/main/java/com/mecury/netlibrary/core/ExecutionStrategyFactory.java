@@ -0,0 +1,36 @@
+package com.mecury.netlibrary.core;
+
+/**
+ * 创建请求的执行策略
+ */
+public final class ExecutionStrategyFactory {
+
+    private ExecutionStrategyFactory(){
+
+    }
+
+    /**
+     * 固定线程数的执行策略，与之前的NetworkExecutor数组行为一致
+     */
+    public static ExecutionStrategy newFixedStrategy(int threadNums){
+        return new FixedExecutionStrategy(threadNums);
+    }
+
+    /**
+     * 有上限的弹性线程池执行策略
+     * @param maxConcurrency 最大并发请求数
+     * @param keepAliveMs 空闲线程的回收时间
+     */
+    public static ExecutionStrategy newElasticStrategy(int maxConcurrency, long keepAliveMs){
+        return new ElasticExecutionStrategy(maxConcurrency, keepAliveMs);
+    }
+
+    /**
+     * 每个请求一个虚拟线程的执行策略，运行时不支持虚拟线程(例如Android)时退化为弹性线程池
+     * @param maxConcurrency 最大并发请求数
+     */
+    public static ExecutionStrategy newVirtualThreadStrategy(int maxConcurrency){
+        return new ElasticExecutionStrategy(maxConcurrency,
+                ElasticExecutionStrategy.DEFAULT_KEEP_ALIVE_MS, true);
+    }
+}
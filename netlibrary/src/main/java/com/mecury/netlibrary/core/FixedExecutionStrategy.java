@@ -0,0 +1,120 @@
+package com.mecury.netlibrary.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 固定线程数的执行策略，启动固定数量的NetworkExecutor线程循环读取请求，运行中可以调整线程数
+ */
+public class FixedExecutionStrategy implements ExecutionStrategy {
+
+    /**
+     * NetworkExecutor的数量
+     */
+    private int mThreadNums;
+
+    /**
+     * NetworkExecutor,执行网络请求的线程
+     */
+    private final List<NetworkExecutor> mDispatchers = new ArrayList<NetworkExecutor>();
+
+    /**
+     * 已经调用quit()、可能还在执行最后一个请求的线程
+     */
+    private final List<NetworkExecutor> mQuittingDispatchers = new ArrayList<NetworkExecutor>();
+
+    /**
+     * 运行中的请求调度器，没有启动时为null
+     */
+    private RequestScheduler mScheduler;
+
+    private RequestPerformer mPerformer;
+
+    public FixedExecutionStrategy(int threadNums){
+        mThreadNums = Math.max(1, threadNums);
+    }
+
+    @Override
+    public synchronized void start(RequestScheduler scheduler, RequestPerformer performer) {
+        mScheduler = scheduler;
+        mPerformer = performer;
+        for (int i = 0; i < mThreadNums; i++){
+            startDispatcher();
+        }
+    }
+
+    private void startDispatcher(){
+        NetworkExecutor dispatcher = new NetworkExecutor(mScheduler, mPerformer);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+
+    private void quitDispatcher(NetworkExecutor dispatcher){
+        dispatcher.quit();
+        //顺便移除已经退出的线程，避免反复调整时列表增长
+        Iterator<NetworkExecutor> iterator = mQuittingDispatchers.iterator();
+        while (iterator.hasNext()){
+            if (!iterator.next().isAlive()){
+                iterator.remove();
+            }
+        }
+        mQuittingDispatchers.add(dispatcher);
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (NetworkExecutor dispatcher : mDispatchers){
+            quitDispatcher(dispatcher);
+        }
+        mDispatchers.clear();
+        mScheduler = null;
+        mPerformer = null;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        List<NetworkExecutor> quitting;
+        synchronized (this){
+            quitting = new ArrayList<NetworkExecutor>(mQuittingDispatchers);
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (NetworkExecutor dispatcher : quitting){
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs > 0){
+                dispatcher.join(remainingMs);
+            }
+            if (dispatcher.isAlive()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 调整线程数，运行中调大时立即启动新的线程，调小时多出的线程执行完当前的请求后退出
+     */
+    @Override
+    public synchronized void setConcurrency(int concurrency) {
+        mThreadNums = Math.max(1, concurrency);
+        if (mScheduler == null){
+            return;
+        }
+        while (mDispatchers.size() < mThreadNums){
+            startDispatcher();
+        }
+        while (mDispatchers.size() > mThreadNums){
+            quitDispatcher(mDispatchers.remove(mDispatchers.size() - 1));
+        }
+    }
+
+    @Override
+    public synchronized int getConcurrency() {
+        return mThreadNums;
+    }
+
+    public synchronized int getThreadNums(){
+        return mThreadNums;
+    }
+}
@@ -1,131 +1,84 @@
 package com.mecury.netlibrary.core;
 
-import android.util.Log;
-
 import com.mecury.netlibrary.base.Request;
-import com.mecury.netlibrary.base.Response;
-import com.mecury.netlibrary.cache.Cache;
-import com.mecury.netlibrary.cache.LruMemCache;
-import com.mecury.netlibrary.httpstacks.HttpStack;
-
-import java.util.concurrent.BlockingQueue;
 
 /**
  * Created by 海飞 on 2016/8/5.
- * 网络请求Executor, 继承自Thread， 从网络请求队列中循环读取请求并且执行
+ * 网络请求Executor, 继承自Thread， 从请求调度器中循环读取请求并且执行
  */
 public class NetworkExecutor extends Thread{
 
     /**
-     * 网络请求队列
+     * 请求调度器
      */
-    private BlockingQueue<Request<?>> mRequestQueue;
+    private RequestScheduler mScheduler;
 
     /**
-     * 网络请求栈
+     * 请求的真正执行者
      */
-    private HttpStack mHttpStack;
+    private RequestPerformer mPerformer;
 
     /**
-     * 结果分发器，将结果投递到主线程
+     * 是否停止
      */
-    private static ResponseDelivery mResponseDelivery = new ResponseDelivery();
+    private boolean isStop = false;
 
     /**
-     * 请求缓存
+     * 是否正在执行请求
      */
-    private static Cache<String, Response> mReqCache = new LruMemCache();
+    private boolean isExecuting = false;
 
     /**
-     * 是否停止
+     * 保护isStop与isExecuting，保证quit()只中断等待请求的线程
      */
-    private boolean isStop = false;
+    private final Object mStateLock = new Object();
 
-    public NetworkExecutor(BlockingQueue<Request<?>> queue, HttpStack httpStack){
-        mRequestQueue = queue;
-        mHttpStack = httpStack;
+    public NetworkExecutor(RequestScheduler scheduler, RequestPerformer performer){
+        mScheduler = scheduler;
+        mPerformer = performer;
     }
 
     @Override
     public void run() {
         try{
-            while(!isStop){
-                final Request<?> request = mRequestQueue.take();
-                if (request.isCanceled()){
-                    Log.d("### ", "### 取消执行了");
-                    continue;
+            while(true){
+                final Request<?> request = mScheduler.take();
+                synchronized (mStateLock){
+                    if (isStop){
+                        //取出请求之后才停止，请求还未执行，放回所在级别的队首由其他线程执行
+                        mScheduler.requeue(request);
+                        return;
+                    }
+                    isExecuting = true;
                 }
-                Response response = null;
-                if (isUseCache(request)){
-                    //从缓存中取
-                    response = mReqCache.get(request.getUrl());
-                }else{
-                    //从网络上获取数据
-                    response = mHttpStack.performRequest(request);
-                    //如果该需求需要缓存，那么请求成功则缓存到mResponseCache中
-                    if (request.shouldCache() && isSuccess(response)){
-                        mReqCache.put(request.getUrl(), response);
+                try{
+                    mPerformer.performRequest(request);
+                }finally {
+                    mScheduler.finish(request);
+                    synchronized (mStateLock){
+                        isExecuting = false;
+                    }
+                }
+                synchronized (mStateLock){
+                    if (isStop){
+                        return;
                     }
                 }
-
-                mResponseDelivery.deliveryResponse(request, response);
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            //等待请求时被quit()中断，正常退出
         }
     }
 
-    public boolean isSuccess(Response response){
-        return response != null && response.getStatusCode() == 200;
-    }
-
-    public boolean isUseCache(Request<?> request){
-        return request.shouldCache() && mReqCache.get(request.getUrl()) != null;
-    }
-
+    /**
+     * 停止线程。正在等待请求时立即退出，正在执行请求时不会中断连接，执行完当前的请求后退出
+     */
     public void quit(){
-        isStop = true;
-        interrupt();
+        synchronized (mStateLock){
+            isStop = true;
+            if (!isExecuting){
+                interrupt();
+            }
+        }
     }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,291 @@
+package com.mecury.netlibrary.core;
+
+import android.util.Log;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+import com.mecury.netlibrary.base.RetryPolicy;
+import com.mecury.netlibrary.cache.Cache;
+import com.mecury.netlibrary.cache.CacheStrategy;
+import com.mecury.netlibrary.httpstacks.HttpStack;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 请求执行者，负责执行单个请求：先查缓存，再通过HttpStack请求网络，最后将结果投递出去。
+ * 与线程模型无关，由ExecutionStrategy决定在哪个线程上调用
+ */
+public class RequestPerformer {
+
+    /**
+     * 请求所属的队列
+     */
+    private RequestQueue mRequestQueue;
+
+    /**
+     * 网络请求栈
+     */
+    private HttpStack mHttpStack;
+
+    /**
+     * 请求缓存
+     */
+    private volatile Cache<String, Response> mReqCache;
+
+    /**
+     * 结果分发器，将结果投递到主线程
+     */
+    private ResponseDelivery mResponseDelivery;
+
+    /**
+     * 解析结果的Executor，为null时在执行请求的线程中解析
+     */
+    private volatile Executor mParseExecutor;
+
+    public RequestPerformer(RequestQueue queue, HttpStack httpStack, Cache<String, Response> cache,
+                            ResponseDelivery delivery){
+        mRequestQueue = queue;
+        mHttpStack = httpStack;
+        mReqCache = cache;
+        mResponseDelivery = delivery;
+    }
+
+    /**
+     * 执行请求，该方法运行在执行请求的线程中
+     */
+    public void performRequest(Request<?> request){
+        if (request.isCanceled()){
+            Log.d("### ", "### 取消执行了");
+            handOverSameRequests(request);
+            return;
+        }
+        if (request.isExpired() || (request.getRemainingTimeMs() <= 0 && request.expire())){
+            //在队列中等待时已经超时
+            finishExpired(request);
+            return;
+        }
+        Response response = null;
+        try{
+            try{
+                response = obtainResponse(request);
+            }catch (RuntimeException e){
+                //HttpStack或者缓存抛出的非IO异常，例如url无法解析，重试也不会成功。
+                //必须结束该请求，否则之后相同的请求会一直合并到这个已经结束的请求上
+                Log.e("", "### 执行请求出错 : " + request.getUrl(), e);
+                deliverToSameRequests(request, null);
+                return;
+            }
+            if (response == null && request.isCanceled()){
+                //执行过程中被取消，连接已经中断，合并到该请求上还未取消的相同请求重新执行
+                handOverSameRequests(request);
+                return;
+            }
+            if (response == null && request.isExpired()){
+                //执行过程中超时，连接已经被超时检测中断
+                finishExpired(request);
+                return;
+            }
+            if (scheduleRetry(request, response)){
+                return;
+            }
+
+            deliverToSameRequests(request, response);
+        }finally {
+            //请求被取消时流式结果没有被读取，同样需要释放连接
+            if (response != null && response.isStreaming()){
+                response.close();
+            }
+            //请求已经结束，之后的取消不再中断连接，复用的连接可能已经交给了其他请求
+            request.setAbortHandler(null);
+        }
+    }
+
+    /**
+     * 结束请求，将结果分发给该请求以及合并到该请求上的相同请求，response为null时分发失败的结果
+     */
+    private void deliverToSameRequests(Request<?> request, Response response){
+        List<Request<?>> sameRequests = mRequestQueue.finish(request);
+        for (Request<?> sameRequest : sameRequests){
+            if (!sameRequest.isCanceled()){
+                parseAndDelivery(sameRequest, response);
+            }
+        }
+    }
+
+    /**
+     * 在工作线程中解析结果，然后只将解析好的结果投递给ResponseDelivery
+     */
+    private void parseAndDelivery(final Request<?> request, final Response response){
+        if (response != null && response.isStreaming()){
+            //流式结果必须在执行请求的线程中读取，读取完毕后释放连接
+            try{
+                request.parseNetworkResponse(response);
+            }finally {
+                response.close();
+            }
+            //读取过程中超时时连接已经被中断，分发超时的结果
+            mResponseDelivery.deliveryResponse(request, request.isExpired() ? null : response);
+            return;
+        }
+        Executor parseExecutor = mParseExecutor;
+        if (parseExecutor == null){
+            request.parseNetworkResponse(response);
+            mResponseDelivery.deliveryResponse(request, response);
+            return;
+        }
+        parseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.parseNetworkResponse(response);
+                mResponseDelivery.deliveryResponse(request, response);
+            }
+        });
+    }
+
+    public void setCache(Cache<String, Response> cache){
+        mReqCache = cache;
+    }
+
+    public Cache<String, Response> getCache(){
+        return mReqCache;
+    }
+
+    /**
+     * 设置解析结果的Executor，为null时在执行请求的线程中解析
+     */
+    public void setParseExecutor(Executor parseExecutor){
+        mParseExecutor = parseExecutor;
+    }
+
+    /**
+     * 根据HTTP缓存语义获取结果：缓存新鲜时直接使用缓存，过期时发起条件请求，服务端返回304时合并缓存结果
+     */
+    private Response obtainResponse(Request<?> request){
+        final Cache<String, Response> cache = mReqCache;
+        final String cacheKey = request.getCacheKey();
+        //只有GET请求查询缓存，只查询一次，避免判断与读取之间缓存被淘汰
+        final boolean cacheable = request.shouldCache() && CacheStrategy.isCacheableMethod(request);
+        Response cached = cacheable ? cache.get(cacheKey) : null;
+        CacheStrategy strategy = new CacheStrategy.Factory(System.currentTimeMillis(), request, cached).get();
+        if (strategy.networkHeaders == null){
+            //缓存仍然有效，或者请求只允许使用缓存
+            return strategy.cacheResponse;
+        }
+
+        //从网络上获取数据，缓存过期时带上验证条件
+        request.setAdditionalHeaders(strategy.networkHeaders);
+        //进度与结果通过同一个ResponseDelivery批量分发，进度回调总在结果回调之前
+        request.setProgressExecutor(mResponseDelivery);
+        long sentRequestMillis = System.currentTimeMillis();
+        Response response = mHttpStack.performRequest(request);
+        if (response == null){
+            return null;
+        }
+        if (request.isCanceled() || request.isExpired()){
+            //连接可能在读取body时被中断，结果不完整，不能缓存也不能分发
+            response.close();
+            return null;
+        }
+        response.setRequestTimes(sentRequestMillis, System.currentTimeMillis());
+
+        if (strategy.cacheResponse != null && response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED){
+            //缓存验证通过，使用缓存的body并更新header
+            Response combined = CacheStrategy.combine(strategy.cacheResponse, response);
+            cache.put(cacheKey, combined);
+            return combined;
+        }
+
+        //修改了服务端数据的请求成功后，同一个url的GET缓存不再有效
+        if (CacheStrategy.invalidatesCache(request) && isSuccessful(response)){
+            cache.remove(Request.cacheKeyOf(Request.HttpMethod.GET, request.getUrl()));
+        }
+
+        //如果该需求需要缓存，那么请求成功则缓存到mResponseCache中，流式结果没有缓存在内存中，不能缓存
+        if (cacheable && !response.isStreaming()){
+            if (isSuccess(response) && CacheStrategy.isCacheable(response, request)){
+                cache.put(cacheKey, response);
+            }else if (cached != null){
+                cache.remove(cacheKey);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * 根据重试策略安排重试，等待时间超过请求剩余的时间时不再重试
+     * @return 是否安排了重试
+     */
+    private boolean scheduleRetry(Request<?> request, Response response){
+        if (response != null && response.getStatusCode() < 400){
+            return false;
+        }
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        if (retryPolicy == null){
+            retryPolicy = mRequestQueue.getDefaultRetryPolicy();
+        }
+        if (retryPolicy == null){
+            return false;
+        }
+        int retryCount = request.getRetryCount();
+        long delayMs = retryPolicy.getRetryDelayMs(request, retryCount, response);
+        if (delayMs < 0 || delayMs >= request.getRemainingTimeMs()){
+            return false;
+        }
+        Log.d("### ", "### 第" + (retryCount + 1) + "次重试，等待" + delayMs + "ms : " + request.getUrl());
+        request.setRetryCount(retryCount + 1);
+        mRequestQueue.retryLater(request, delayMs);
+        return true;
+    }
+
+    /**
+     * 请求被取消或者超时时，合并到该请求上还未取消、也没有超时的相同请求重新加入队列
+     */
+    void handOverSameRequests(Request<?> request){
+        List<Request<?>> sameRequests = mRequestQueue.finish(request);
+        for (Request<?> sameRequest : sameRequests){
+            if (sameRequest != request && !sameRequest.isCanceled() && !sameRequest.isExpired()){
+                mRequestQueue.enqueue(sameRequest);
+            }
+        }
+    }
+
+    /**
+     * 请求超时，分发超时的结果，合并到该请求上的相同请求按照自己的时限重新执行
+     */
+    void finishExpired(Request<?> request){
+        handOverSameRequests(request);
+        deliverFailure(request);
+    }
+
+    /**
+     * 分发失败的结果，Listener收到的stCode为-1
+     */
+    void deliverFailure(Request<?> request){
+        parseAndDelivery(request, null);
+    }
+
+    public boolean isSuccess(Response response){
+        return response != null && response.getStatusCode() == 200;
+    }
+
+    /**
+     * 状态码为2xx
+     */
+    private static boolean isSuccessful(Response response){
+        return response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+    }
+
+    /**
+     * 是否可以直接使用缓存而不需要请求网络
+     */
+    public boolean isUseCache(Request<?> request){
+        if (!request.shouldCache() || !CacheStrategy.isCacheableMethod(request)){
+            return false;
+        }
+        Response cached = mReqCache.get(request.getCacheKey());
+        return cached != null
+                && new CacheStrategy.Factory(System.currentTimeMillis(), request, cached).get().networkHeaders == null;
+    }
+}
@@ -3,29 +3,80 @@ package com.mecury.netlibrary.core;
 import android.util.Log;
 
 import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+import com.mecury.netlibrary.base.RetryPolicy;
+import com.mecury.netlibrary.cache.BoundedMemCache;
+import com.mecury.netlibrary.cache.Cache;
 import com.mecury.netlibrary.httpstacks.HttpStack;
 import com.mecury.netlibrary.httpstacks.HttpStackFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by 海飞 on 2016/8/5.
- * 请求队列，使用优先队列，使得请求可以按照优先级进行处理
+ * 请求队列，使用按host分组的请求调度器，使得请求可以按照优先级进行处理，并且限制单个host的并发数
  */
 public class RequestQueue {
 
     /**
-     * 请求队列
+     * 请求调度器
      */
-    private BlockingQueue<Request<?>> mRequestQueue = new PriorityBlockingQueue<Request<?>>();
+    private RequestScheduler mScheduler = new RequestScheduler();
+
+    /**
+     * 正在排队或者执行的请求，key为请求的缓存key，value中第一个请求是真正执行的请求，其余为等待合并结果的相同请求
+     */
+    private final Map<String, List<Request<?>>> mInFlightRequests = new HashMap<String, List<Request<?>>>();
+
+    /**
+     * 所有排队、执行中或者等待合并结果的请求，用于按照标记取消。按照引用区分，相同的请求不会被合并成一个
+     */
+    private final Set<Request<?>> mCurrentRequests =
+            Collections.newSetFromMap(new IdentityHashMap<Request<?>, Boolean>());
+
+    /**
+     * 定时线程，执行超时检测与延迟重试，所有任务共享一个守护线程，空闲时线程会被回收
+     */
+    private final ScheduledThreadPoolExecutor mTimer = createTimer();
+
+    /**
+     * 请求超时检测
+     */
+    private final DeadlineWatchdog mWatchdog = new DeadlineWatchdog(this, mTimer);
+
+    /**
+     * 请求没有设置重试策略时使用的策略，为null时不重试
+     */
+    private volatile RetryPolicy mDefaultRetryPolicy;
+
+    /**
+     * 是否已经关闭，关闭后不再接受新的请求
+     */
+    private volatile boolean isShutdown = false;
 
     /**
      * 请求的序列化生成器
      */
     private AtomicInteger mSerialNumGenerator = new AtomicInteger(0);
 
+    /**
+     * 定时线程空闲回收时间
+     */
+    private static final long TIMER_KEEP_ALIVE_SECONDS = 10;
+
     /**
      * 默认的核心数
      */
@@ -37,69 +88,474 @@ public class RequestQueue {
     public int mDispatchNums = DEFAULT_CORE_NUMS;
 
     /**
-     * NetworkExecutor,执行网络请求的线程
+     * 执行策略，决定由哪些线程执行网络请求
      */
-    private NetworkExecutor[] mDispatchers = null;
+    private ExecutionStrategy mExecutionStrategy;
 
     /**
      * Http请求的真正执行者
      */
     private HttpStack mHttpStack;
 
+    /**
+     * 单个请求的执行者
+     */
+    private RequestPerformer mPerformer;
+
     /**
      * @param coreNums 线程核心数
      * @param httpStack http执行器
      */
     protected RequestQueue(int coreNums, HttpStack httpStack){
+        this(new FixedExecutionStrategy(coreNums), httpStack);
         mDispatchNums = coreNums;
+    }
+
+    /**
+     * @param strategy 执行策略
+     * @param httpStack http执行器
+     */
+    protected RequestQueue(ExecutionStrategy strategy, HttpStack httpStack){
+        this(strategy, httpStack, null);
+    }
+
+    /**
+     * @param strategy 执行策略
+     * @param httpStack http执行器
+     * @param delivery 结果分发器，为null时批量投递到主线程
+     */
+    protected RequestQueue(ExecutionStrategy strategy, HttpStack httpStack, ResponseDelivery delivery){
+        mExecutionStrategy = strategy != null ? strategy : new FixedExecutionStrategy(DEFAULT_CORE_NUMS);
         mHttpStack = httpStack != null ? httpStack : HttpStackFactory.createHttpStack();
+        mPerformer = new RequestPerformer(this, mHttpStack, new BoundedMemCache(),
+                delivery != null ? delivery : new ResponseDelivery());
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer(){
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimpleNet-Timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setKeepAliveTime(TIMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        //请求提前结束时及时移除超时检测任务，不再持有请求
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
     }
 
     /**
-     * 启动NetWorkExecutor
+     * 启动执行策略
      */
     private final void startNetworkExecutors(){
-        mDispatchers = new NetworkExecutor[mDispatchNums];
-        for (int i = 0; i < mDispatchNums; i++){
-            mDispatchers[i] = new NetworkExecutor(mRequestQueue, mHttpStack);
-            mDispatchers[i].start();
-        }
+        mExecutionStrategy.start(mScheduler, mPerformer);
     }
 
+    /**
+     * 启动执行线程，已经启动时先停止原来的线程，原来的线程执行完当前的请求后退出。
+     * 调用shutdown()之后也可以重新启动
+     */
     public void start(){
         stop();
+        isShutdown = false;
         startNetworkExecutors();
     }
 
     /**
-     * 停止NetworkExecutor
+     * 停止执行策略，正在执行的请求执行完毕，还未执行的请求保留在队列中，再次start()后继续执行
      */
     public void stop(){
-        if (mDispatchers != null && mDispatchers.length > 0){
-            for (int i = 0; i < mDispatchers.length; i++){
-                mDispatchers[i].quit();
+        mExecutionStrategy.stop();
+    }
+
+    /**
+     * 优雅地关闭队列：不再接受新的请求，等待排队、执行中以及等待重试的请求在timeoutMs内完成，
+     * 超时后取消剩余的请求，最后停止执行线程。暂停中的队列会先恢复
+     * @param timeoutMs 最长等待时间
+     * @return 所有请求是否都在时限内完成
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        isShutdown = true;
+        resume();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean drained = awaitIdle(deadline);
+        if (!drained){
+            cancelAll(new RequestFilter() {
+                @Override
+                public boolean apply(Request<?> request) {
+                    return true;
+                }
+            });
+        }
+        stop();
+        mExecutionStrategy.awaitTermination(
+                Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        return drained;
+    }
+
+    /**
+     * 等待所有请求完成
+     * @return 是否在截止时间之前完成
+     */
+    private boolean awaitIdle(long deadlineNanos) throws InterruptedException {
+        synchronized (mCurrentRequests){
+            while (!mCurrentRequests.isEmpty()){
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMs <= 0){
+                    return false;
+                }
+                mCurrentRequests.wait(remainingMs);
             }
         }
+        return true;
+    }
+
+    public boolean isShutdown(){
+        return isShutdown;
+    }
+
+    /**
+     * 暂停执行，正在执行的请求不受影响，之后加入的请求在队列中等待，直到调用resume()
+     */
+    public void pause(){
+        mScheduler.setPaused(true);
+    }
+
+    public void resume(){
+        mScheduler.setPaused(false);
+    }
+
+    public boolean isPaused(){
+        return mScheduler.isPaused();
+    }
+
+    /**
+     * 运行中调整执行线程数或者最大并发数，调小时多出的线程执行完当前的请求后退出，不会丢弃请求
+     */
+    public void setConcurrency(int concurrency){
+        mExecutionStrategy.setConcurrency(concurrency);
+        mDispatchNums = mExecutionStrategy.getConcurrency();
+    }
+
+    public int getConcurrency(){
+        return mExecutionStrategy.getConcurrency();
+    }
+
+    /**
+     * 设置请求结果的缓存，默认为按字节数限制大小的BoundedMemCache
+     */
+    public void setCache(Cache<String, Response> cache){
+        mPerformer.setCache(cache);
+    }
+
+    public Cache<String, Response> getCache(){
+        return mPerformer.getCache();
+    }
+
+    /**
+     * 设置解析结果的Executor，例如newParseExecutor()创建的CPU线程池，为null时在执行请求的线程中解析。
+     * 无论哪种方式，结果都不会在UI线程中解析
+     */
+    public void setParseExecutor(Executor parseExecutor){
+        mPerformer.setParseExecutor(parseExecutor);
     }
 
     /**
-     * 添加请求，不能重复添加
+     * 创建一个线程数与CPU核心数相同的解析线程池
+     */
+    public static ExecutorService newParseExecutor(){
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExecutionStrategy getExecutionStrategy(){
+        return mExecutionStrategy;
+    }
+
+    /**
+     * 添加请求，不能重复添加。
+     * 请求加入队列时被冻结，通过缓存key判断重复请求，如果相同的GET请求正在排队或者执行，则不再发起新的网络请求，
+     * 而是等待该请求完成后将结果一起分发给新的请求。队列关闭后加入的请求直接分发失败的结果
      */
     public void addRequest(Request<?> request){
-        if (!mRequestQueue.contains(request)){
+        if (isShutdown){
+            Log.d("","### 请求队列已经关闭");
+            mPerformer.deliverFailure(request);
+            return;
+        }
+        enqueue(request);
+    }
+
+    /**
+     * 将请求加入队列，不检查队列是否已经关闭。关闭过程中被取消的请求交出的相同请求仍然需要执行
+     */
+    void enqueue(Request<?> request){
+        request.freeze();
+        final String cacheKey = request.getCacheKey();
+        //流式结果只能读取一次，不能合并，每个请求都单独执行
+        if (request.isStreamingResponse()){
+            trackRequest(request);
             request.setSerialNumber(this.generateSerialNumber());
-            mRequestQueue.add(request);
-        }else{
-            Log.d("","### 请求队列已经含有");
+            mScheduler.add(request);
+            return;
+        }
+        synchronized (mInFlightRequests){
+            List<Request<?>> sameRequests = mInFlightRequests.get(cacheKey);
+            if (sameRequests != null){
+                if (!isCoalescable(request) || containsInstance(sameRequests, request)){
+                    Log.d("","### 请求队列已经含有");
+                    return;
+                }
+                sameRequests.add(request);
+                trackRequest(request);
+                promotePriority(sameRequests.get(0), request.getPriority());
+                Log.d("","### 合并相同的请求");
+                return;
+            }
+            sameRequests = new ArrayList<Request<?>>(1);
+            sameRequests.add(request);
+            mInFlightRequests.put(cacheKey, sameRequests);
+            trackRequest(request);
+        }
+        request.setSerialNumber(this.generateSerialNumber());
+        mScheduler.add(request);
+    }
+
+    private void trackRequest(Request<?> request){
+        synchronized (mCurrentRequests){
+            mCurrentRequests.add(request);
+        }
+        //设置了时限的请求从第一次加入队列时开始计时
+        if (request.startDeadline()){
+            mWatchdog.watch(request);
+        }
+    }
+
+    /**
+     * 所有请求都已完成时唤醒等待关闭的线程，调用时必须持有mCurrentRequests的锁
+     */
+    private void notifyIfIdle(){
+        if (mCurrentRequests.isEmpty()){
+            mCurrentRequests.notifyAll();
+        }
+    }
+
+    /**
+     * 只有GET请求可以合并，其他请求可能会修改服务端的数据
+     */
+    private boolean isCoalescable(Request<?> request){
+        return request.getHttpMethod() == Request.HttpMethod.GET;
+    }
+
+    private static boolean containsInstance(List<Request<?>> requests, Request<?> request){
+        for (Request<?> item : requests){
+            if (item == request){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 等待合并结果的请求优先级更高时，提升还未执行的请求的优先级
+     */
+    private void promotePriority(Request<?> executing, Request.Priority priority){
+        //优先级没有提高时不需要调整，大部分合并的请求都是这种情况
+        if (priority.ordinal() <= executing.getPriority().ordinal()){
+            return;
+        }
+        mScheduler.promote(executing, priority);
+    }
+
+    /**
+     * 请求执行完毕，将其从正在执行的请求中移除
+     * @return 需要分发结果的请求，包括该请求本身以及合并到该请求上的相同请求
+     */
+    List<Request<?>> finish(Request<?> request){
+        final String cacheKey = request.getCacheKey();
+        List<Request<?>> finished = null;
+        synchronized (mInFlightRequests){
+            List<Request<?>> sameRequests = mInFlightRequests.get(cacheKey);
+            if (sameRequests != null && sameRequests.get(0) == request){
+                mInFlightRequests.remove(cacheKey);
+                finished = sameRequests;
+            }
+        }
+        if (finished == null){
+            finished = Collections.<Request<?>>singletonList(request);
+        }
+        synchronized (mCurrentRequests){
+            for (Request<?> item : finished){
+                mCurrentRequests.remove(item);
+            }
+            notifyIfIdle();
+        }
+        for (Request<?> item : finished){
+            mWatchdog.unwatch(item);
+        }
+        return finished;
+    }
+
+    /**
+     * 请求到达截止时间，运行在超时检测线程中。还未执行的请求从调度器中移除并直接失败，
+     * 等待合并结果的请求不再等待，正在执行的请求中断连接后由RequestPerformer分发超时结果
+     */
+    void onDeadlineExpired(Request<?> request){
+        synchronized (mCurrentRequests){
+            if (!mCurrentRequests.contains(request)){
+                return;
+            }
+        }
+        if (!request.expire()){
+            return;
+        }
+        if (mScheduler.remove(request)){
+            mPerformer.finishExpired(request);
+        }else if (removeWaiting(request)){
+            mPerformer.deliverFailure(request);
+        }
+    }
+
+    /**
+     * 在delayMs之后将失败的请求重新加入调度器，等待期间不占用执行线程。
+     * 请求仍然保留在正在执行的请求中，合并到该请求上的相同请求继续等待重试的结果
+     */
+    void retryLater(final Request<?> request, long delayMs){
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCanceled()){
+                    mPerformer.handOverSameRequests(request);
+                }else if (request.isExpired()){
+                    mPerformer.finishExpired(request);
+                }else{
+                    mScheduler.add(request);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置请求没有设置重试策略时使用的策略，例如new DefaultRetryPolicy()，为null时不重试
+     */
+    public void setDefaultRetryPolicy(RetryPolicy retryPolicy){
+        mDefaultRetryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getDefaultRetryPolicy(){
+        return mDefaultRetryPolicy;
+    }
+
+    /**
+     * 将等待合并结果的请求从相同请求的列表中移除，正在执行的请求本身不会被移除
+     * @return 该请求是否在等待合并结果
+     */
+    private boolean removeWaiting(Request<?> request){
+        synchronized (mInFlightRequests){
+            List<Request<?>> sameRequests = mInFlightRequests.get(request.getCacheKey());
+            if (sameRequests == null){
+                return false;
+            }
+            for (int i = 1; i < sameRequests.size(); i++){
+                if (sameRequests.get(i) == request){
+                    sameRequests.remove(i);
+                    synchronized (mCurrentRequests){
+                        mCurrentRequests.remove(request);
+                        notifyIfIdle();
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取消所有标记为tag的请求
+     */
+    public void cancelAll(final Object tag){
+        if (tag == null){
+            throw new IllegalArgumentException("Cannot cancelAll with a null tag");
+        }
+        cancelAll(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return request.getTag() == tag;
+            }
+        });
+    }
+
+    /**
+     * 取消所有符合条件的请求。正在执行的请求会中断连接，还未执行的请求立即从调度器中移除，不再占用执行线程
+     */
+    public void cancelAll(RequestFilter filter){
+        List<Request<?>> matched = new ArrayList<Request<?>>();
+        synchronized (mCurrentRequests){
+            for (Request<?> request : mCurrentRequests){
+                if (filter.apply(request)){
+                    matched.add(request);
+                }
+            }
+        }
+        //先全部取消，移除时合并的相同请求中只有还未取消的才会重新加入队列
+        for (Request<?> request : matched){
+            request.cancel();
+        }
+        for (Request<?> request : matched){
+            if (mScheduler.remove(request)){
+                mPerformer.handOverSameRequests(request);
+            }
         }
     }
 
     public void clear(){
-        mRequestQueue.clear();
+        List<Request<?>> pendingRequests = mScheduler.getPendingRequests();
+        mScheduler.clear();
+        for (Request<?> request : pendingRequests){
+            finish(request);
+        }
+    }
+
+    /**
+     * 所有还未执行的请求
+     */
+    public List<Request<?>> getAllRequsets(){
+        return mScheduler.getPendingRequests();
+    }
+
+    /**
+     * 设置同一个host的最大并发请求数
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost){
+        mScheduler.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    public int getMaxRequestsPerHost(){
+        return mScheduler.getMaxRequestsPerHost();
+    }
+
+    /**
+     * 选择要取消的请求
+     */
+    public interface RequestFilter {
+        public boolean apply(Request<?> request);
     }
 
-    public BlockingQueue<Request<?>> getAllRequsets(){
-        return mRequestQueue;
+    /**
+     * 设置等待中的请求有效优先级提升一级需要等待的时间，为0时严格按照优先级执行，
+     * 默认为RequestScheduler.DEFAULT_AGING_INTERVAL_MS
+     */
+    public void setAgingIntervalMs(long agingIntervalMs){
+        mScheduler.setAgingIntervalMs(agingIntervalMs);
+    }
+
+    /**
+     * 该优先级的请求在队列中的等待时间
+     */
+    public WaitTimeHistogram getWaitTimeHistogram(Request.Priority priority){
+        return mScheduler.getWaitTimeHistogram(priority);
     }
 
     /**
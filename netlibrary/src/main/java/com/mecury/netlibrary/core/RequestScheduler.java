@@ -0,0 +1,647 @@
+package com.mecury.netlibrary.core;
+
+import com.mecury.netlibrary.base.Request;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 请求调度器，替代单一的PriorityBlockingQueue。
+ * <p>
+ * 每个host在每个优先级有一个无锁的先进先出队列，每个优先级再有一个由有请求的host组成的轮转队列，
+ * 用一个位图记录哪些级别不为空，入队与出队都是O(1)，执行线程之间只在没有请求、需要休眠时才竞争锁。
+ * IMMEDIATE最先执行，LOW最后执行；同一个级别内各个host轮流出队，同一个host内先进先出，
+ * 某个host一次加入大量请求时不会让其他host的请求排在后面。
+ * </p>
+ * <p>
+ * 同一个host同时执行的请求数不超过maxRequestsPerHost(参考okhttp3.Dispatcher)，
+ * 达到上限的host暂时移出轮转队列，它的请求留在自己的队列中，该host有请求执行完毕时再放回轮转队列的队首，
+ * 这样某个host变慢时不会占满所有的执行线程而饿死其他host的请求。
+ * </p>
+ * <p>
+ * 请求在队列中每等待一个agingInterval，有效优先级提升一级，出队时比较各个级别轮转到的请求的有效优先级，
+ * 持续有高优先级的请求加入时，低优先级的请求最多多等待几个agingInterval就会被执行，不会被无限期地饿死。
+ * 每个优先级的请求在队列中的等待时间记录在WaitTimeHistogram中。
+ * </p>
+ */
+public class RequestScheduler {
+
+    /**
+     * 默认每个host最大并发请求数
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+
+    /**
+     * 默认每等待5秒有效优先级提升一级
+     */
+    public static final long DEFAULT_AGING_INTERVAL_MS = 5000;
+
+    private static final int LEVEL_COUNT = Request.Priority.values().length;
+
+    /**
+     * 等待时间带来的最大提升级数，避免计算溢出
+     */
+    private static final int MAX_AGING_LEVELS = 1 << 16;
+
+    /**
+     * 每个优先级一个host轮转队列，下标为Priority.ordinal()。只包含在该级别有请求、还没有达到上限的host
+     */
+    private final List<ConcurrentLinkedDeque<HostState>> mLevels = new ArrayList<ConcurrentLinkedDeque<HostState>>(LEVEL_COUNT);
+
+    /**
+     * 不为空的级别，第i位对应mLevels.get(i)。只是提示，入队之后置位，出队时发现为空再清除
+     */
+    private final AtomicInteger mNonEmptyLevels = new AtomicInteger(0);
+
+    /**
+     * host与其并发数、请求队列的映射
+     */
+    private final ConcurrentHashMap<String, HostState> mHosts = new ConcurrentHashMap<String, HostState>();
+
+    /**
+     * 等待中的请求与其Entry，按照引用区分，promote()与remove()不需要遍历队列
+     */
+    private final ConcurrentHashMap<RequestKey, Entry> mEntries = new ConcurrentHashMap<RequestKey, Entry>();
+
+    /**
+     * 已经取出、还没有finish()的请求与其Entry，requeue()时恢复原来的级别与入队时间
+     */
+    private final ConcurrentHashMap<RequestKey, Entry> mTakenEntries = new ConcurrentHashMap<RequestKey, Entry>();
+
+    /**
+     * 每个优先级的请求在队列中的等待时间
+     */
+    private final WaitTimeHistogram[] mWaitTimeHistograms = new WaitTimeHistogram[LEVEL_COUNT];
+
+    /**
+     * 等待执行的请求数，包括host已经达到上限的请求
+     */
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    /**
+     * 只用于没有请求时让执行线程休眠
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * 有可以执行的请求时通知执行线程
+     */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /**
+     * 正在休眠或者准备休眠的执行线程数，为0时入队不需要获取锁
+     */
+    private final AtomicInteger mWaiters = new AtomicInteger(0);
+
+    private volatile int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    private volatile long mAgingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_INTERVAL_MS);
+
+    /**
+     * 是否暂停出队，暂停期间请求仍然可以加入队列
+     */
+    private volatile boolean isPaused = false;
+
+    public RequestScheduler(){
+        for (int i = 0; i < LEVEL_COUNT; i++){
+            mLevels.add(new ConcurrentLinkedDeque<HostState>());
+            mWaitTimeHistograms[i] = new WaitTimeHistogram();
+        }
+    }
+
+    /**
+     * 添加请求到所在host、所在优先级的队尾
+     */
+    public void add(Request<?> request){
+        RequestKey key = new RequestKey(request);
+        Entry entry = new Entry(request, key, hostOf(request), request.getPriority().ordinal(), System.nanoTime(), false);
+        mEntries.put(key, entry);
+        mSize.incrementAndGet();
+        offer(entry);
+    }
+
+    /**
+     * 将take()取出、但是没有执行的请求交还给调度器，释放占用的host名额，放回所在host该级别的队首，
+     * 并把host放到该级别轮转队列的队首。保留原来的入队时间，等待时间不会重复统计。
+     * 不是由take()取出的请求按照add()处理
+     */
+    public void requeue(Request<?> request){
+        Entry taken = mTakenEntries.remove(new RequestKey(request));
+        if (taken == null){
+            add(request);
+            return;
+        }
+        Entry entry = new Entry(request, taken.key, taken.host, taken.level, taken.enqueueNanos, true);
+        mEntries.put(entry.key, entry);
+        mSize.incrementAndGet();
+        HostState host = obtainHost(entry.host);
+        host.queue(entry.level).offerFirst(entry);
+        release(host);
+    }
+
+    /**
+     * 将请求放入所在host该级别的队尾，host不在该级别的轮转队列中时加入队尾
+     */
+    private void offer(Entry entry){
+        HostState host = obtainHost(entry.host);
+        host.queue(entry.level).offerLast(entry);
+        schedule(host, entry.level, false);
+    }
+
+    /**
+     * 将host放入该级别的轮转队列，并唤醒一个休眠的执行线程。
+     * host已经在轮转队列中，或者正在被某个执行线程处理时什么都不做，由处理它的线程负责放回
+     */
+    private void schedule(HostState host, int level, boolean first){
+        if (!host.scheduled[level].compareAndSet(false, true)){
+            return;
+        }
+        ConcurrentLinkedDeque<HostState> ring = mLevels.get(level);
+        if (first){
+            ring.offerFirst(host);
+        }else{
+            ring.offerLast(host);
+        }
+        markNonEmpty(level);
+        signalWaiter();
+    }
+
+    /**
+     * 执行线程处理完轮转队列中取出的host，该级别还有请求时放回轮转队列的队尾，轮到下一个host
+     */
+    private void reschedule(HostState host, int level){
+        host.scheduled[level].set(false);
+        if (!host.queue(level).isEmpty()){
+            schedule(host, level, false);
+        }
+    }
+
+    private void markNonEmpty(int level){
+        final int bit = 1 << level;
+        int bits;
+        while (((bits = mNonEmptyLevels.get()) & bit) == 0 && !mNonEmptyLevels.compareAndSet(bits, bits | bit)){
+            //其他线程同时修改了位图，重新设置
+        }
+    }
+
+    private void markEmpty(int level){
+        final int bit = 1 << level;
+        int bits;
+        while (((bits = mNonEmptyLevels.get()) & bit) != 0 && !mNonEmptyLevels.compareAndSet(bits, bits & ~bit)){
+            //其他线程同时修改了位图，重新清除
+        }
+        //清除之前可能有请求入队，重新检查，保证不会漏掉
+        if (!mLevels.get(level).isEmpty()){
+            markNonEmpty(level);
+        }
+    }
+
+    private void signalWaiter(){
+        if (mWaiters.get() == 0){
+            return;
+        }
+        final ReentrantLock lock = mLock;
+        lock.lock();
+        try{
+            mAvailable.signal();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一个可以执行的请求，没有时阻塞。取出的请求执行完毕后必须调用finish()
+     */
+    public Request<?> take() throws InterruptedException {
+        Request<?> request = dequeue();
+        if (request != null){
+            return request;
+        }
+        mWaiters.incrementAndGet();
+        try{
+            final ReentrantLock lock = mLock;
+            lock.lockInterruptibly();
+            try{
+                //增加mWaiters之后重新检查，之后入队的请求一定会唤醒这里
+                while ((request = dequeue()) == null){
+                    mAvailable.await();
+                }
+                return request;
+            }finally {
+                lock.unlock();
+            }
+        }finally {
+            mWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 请求执行完毕，释放该host的并发名额
+     */
+    public void finish(Request<?> request){
+        mTakenEntries.remove(new RequestKey(request));
+        HostState host = mHosts.get(hostOf(request));
+        if (host == null){
+            return;
+        }
+        release(host);
+    }
+
+    /**
+     * 释放host的一个名额，并把它有请求的级别放回轮转队列的队首。
+     * 与出队时移出达到上限的host配合：先减少running再检查scheduled，出队的一方先清除scheduled再检查running，
+     * 两边至少有一方能看到对方的修改，不会漏掉
+     */
+    private void release(HostState host){
+        host.running.decrementAndGet();
+        unpark(host);
+    }
+
+    private void unpark(HostState host){
+        for (int level = LEVEL_COUNT - 1; level >= 0; level--){
+            if (!host.queue(level).isEmpty()){
+                schedule(host, level, true);
+            }
+        }
+    }
+
+    /**
+     * 选出有效优先级最高的级别，从其轮转队列队首的host中取出一个请求并占用名额，
+     * host已经达到上限时把它移出轮转队列后继续选择
+     */
+    private Request<?> dequeue(){
+        while (!isPaused){
+            int bits = mNonEmptyLevels.get();
+            if (bits == 0){
+                return null;
+            }
+            final long now = System.nanoTime();
+            final long agingNanos = mAgingIntervalNanos;
+            int bestLevel = -1;
+            int bestPriority = -1;
+            for (int level = LEVEL_COUNT - 1; level >= 0; level--){
+                if ((bits & (1 << level)) == 0){
+                    continue;
+                }
+                HostState head = mLevels.get(level).peekFirst();
+                if (head == null){
+                    markEmpty(level);
+                    continue;
+                }
+                Entry first = head.queue(level).peekFirst();
+                int priority = first != null ? effectivePriority(level, first, now, agingNanos) : level;
+                if (priority > bestPriority){
+                    bestLevel = level;
+                    bestPriority = priority;
+                }
+            }
+            if (bestLevel < 0){
+                continue;
+            }
+            HostState host = mLevels.get(bestLevel).pollFirst();
+            if (host == null){
+                //被其他线程取走了，重新选择
+                continue;
+            }
+            ConcurrentLinkedDeque<Entry> queue = host.queue(bestLevel);
+            Entry entry;
+            while ((entry = queue.pollFirst()) != null && entry.isClaimed()){
+                //丢弃已经被移除或者提升了优先级的请求
+            }
+            if (entry == null){
+                reschedule(host, bestLevel);
+                continue;
+            }
+            if (!tryAcquire(host)){
+                park(host, bestLevel, entry);
+                continue;
+            }
+            if (!entry.claim()){
+                //占用名额之后请求被移除了，归还名额
+                release(host);
+                reschedule(host, bestLevel);
+                continue;
+            }
+            reschedule(host, bestLevel);
+            mEntries.remove(entry.key, entry);
+            mTakenEntries.put(entry.key, entry);
+            mSize.decrementAndGet();
+            if (!entry.isRequeued){
+                mWaitTimeHistograms[entry.level].record(now - entry.enqueueNanos);
+            }
+            return entry.request;
+        }
+        return null;
+    }
+
+    private boolean tryAcquire(HostState host){
+        final int maxPerHost = mMaxRequestsPerHost;
+        int running;
+        while ((running = host.running.get()) < maxPerHost){
+            if (host.running.compareAndSet(running, running + 1)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * host已经达到上限，请求放回它的队首，host移出该级别的轮转队列，等到有请求执行完毕时再放回。
+     * 移出之后重新检查名额，避免与同时执行完毕的请求错过
+     */
+    private void park(HostState host, int level, Entry entry){
+        host.queue(level).offerFirst(entry);
+        host.scheduled[level].set(false);
+        if (host.running.get() < mMaxRequestsPerHost){
+            schedule(host, level, true);
+        }
+    }
+
+    /**
+     * 有效优先级，等于请求所在的级别加上等待的agingInterval数，数值越大越先执行
+     */
+    private static int effectivePriority(int level, Entry entry, long now, long agingNanos){
+        if (agingNanos <= 0){
+            return level;
+        }
+        long aged = (now - entry.enqueueNanos) / agingNanos;
+        return level + (int) Math.min(Math.max(0, aged), MAX_AGING_LEVELS);
+    }
+
+    private HostState obtainHost(String host){
+        HostState state = mHosts.get(host);
+        if (state == null){
+            HostState created = new HostState();
+            state = mHosts.putIfAbsent(host, created);
+            if (state == null){
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 暂停或者恢复出队。暂停时take()一直阻塞，正在执行的请求不受影响；恢复时唤醒所有等待的执行线程
+     */
+    public void setPaused(boolean paused){
+        isPaused = paused;
+        if (paused){
+            return;
+        }
+        final ReentrantLock lock = mLock;
+        lock.lock();
+        try{
+            mAvailable.signalAll();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPaused(){
+        return isPaused;
+    }
+
+    /**
+     * 是否含有该请求
+     */
+    public boolean contains(Request<?> request){
+        Entry entry = mEntries.get(new RequestKey(request));
+        return entry != null && !entry.isClaimed();
+    }
+
+    /**
+     * 移除还未执行的请求，按照引用比较，O(1)。请求只被标记为已移除，出队时再从队列中丢弃。
+     * 与出队同时发生时只有一方会成功
+     */
+    public boolean remove(Request<?> request){
+        Entry entry = mEntries.get(new RequestKey(request));
+        if (entry == null || !entry.claim()){
+            return false;
+        }
+        mEntries.remove(entry.key, entry);
+        mSize.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * 提升还未执行的请求的优先级，已经等待的时间保留，继续参与计算有效优先级
+     * @return 请求是否还在等待执行
+     */
+    public boolean promote(Request<?> request, Request.Priority priority){
+        Entry entry = mEntries.get(new RequestKey(request));
+        if (entry == null || entry.isClaimed()){
+            return false;
+        }
+        if (entry.level >= priority.ordinal()){
+            return true;
+        }
+        //先让新的Entry可以被找到，再作废原来的Entry，期间移除请求会作废新的Entry
+        Entry promoted = new Entry(request, entry.key, entry.host, priority.ordinal(), entry.enqueueNanos, entry.isRequeued);
+        if (!mEntries.replace(entry.key, entry, promoted)){
+            return false;
+        }
+        if (!entry.claim()){
+            //原来的Entry已经出队
+            mEntries.remove(entry.key, promoted);
+            return false;
+        }
+        request.setPriority(priority);
+        offer(promoted);
+        return true;
+    }
+
+    /**
+     * 清空所有还未执行的请求
+     */
+    public void clear(){
+        for (HostState host : mHosts.values()){
+            for (int level = 0; level < LEVEL_COUNT; level++){
+                Entry entry;
+                while ((entry = host.queue(level).pollFirst()) != null){
+                    discard(entry);
+                }
+            }
+        }
+        //轮转队列中剩下的host出队时发现没有请求，会自行移出
+        for (int level = 0; level < LEVEL_COUNT; level++){
+            markEmpty(level);
+        }
+    }
+
+    private void discard(Entry entry){
+        if (entry.claim()){
+            mEntries.remove(entry.key, entry);
+            mSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * 所有还未执行的请求的快照，按照优先级从高到低排列，同一个级别内按照host分组
+     */
+    public List<Request<?>> getPendingRequests(){
+        List<Request<?>> requests = new ArrayList<Request<?>>(Math.max(0, mSize.get()));
+        for (int level = LEVEL_COUNT - 1; level >= 0; level--){
+            for (HostState host : mHosts.values()){
+                for (Entry entry : host.queue(level)){
+                    if (!entry.isClaimed()){
+                        requests.add(entry.request);
+                    }
+                }
+            }
+        }
+        return requests;
+    }
+
+    public int size(){
+        return mSize.get();
+    }
+
+    /**
+     * 某个host正在执行的请求数
+     */
+    public int getRunningCount(String host){
+        HostState state = mHosts.get(host);
+        return state != null ? state.running.get() : 0;
+    }
+
+    /**
+     * 设置每个host的最大并发请求数，调大时将达到上限的host放回轮转队列
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost){
+        if (maxRequestsPerHost < 1){
+            throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        for (HostState host : mHosts.values()){
+            if (host.running.get() < maxRequestsPerHost){
+                unpark(host);
+            }
+        }
+    }
+
+    public int getMaxRequestsPerHost(){
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * 设置有效优先级提升一级需要等待的时间，为0时不提升，严格按照优先级执行
+     */
+    public void setAgingIntervalMs(long agingIntervalMs){
+        if (agingIntervalMs < 0){
+            throw new IllegalArgumentException("agingIntervalMs < 0: " + agingIntervalMs);
+        }
+        mAgingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(agingIntervalMs);
+    }
+
+    public long getAgingIntervalMs(){
+        return TimeUnit.NANOSECONDS.toMillis(mAgingIntervalNanos);
+    }
+
+    /**
+     * 该优先级的请求在队列中的等待时间，按照出队时所在的级别统计
+     */
+    public WaitTimeHistogram getWaitTimeHistogram(Request.Priority priority){
+        return mWaitTimeHistograms[priority.ordinal()];
+    }
+
+    /**
+     * 从请求的url中解析出host，解析失败时所有这类请求归为同一组
+     */
+    static String hostOf(Request<?> request){
+        try {
+            String host = new URL(request.getUrl()).getHost();
+            return host != null ? host : "";
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * 等待执行的请求，记录所在的级别与加入队列的时间，按照引用比较。
+     * 出队、移除与提升优先级都需要先claim()，只有一方会成功
+     */
+    private static class Entry {
+        final Request<?> request;
+        final RequestKey key;
+        final String host;
+        final int level;
+        final long enqueueNanos;
+        /**
+         * 是否是requeue()放回的请求，第一次出队时已经统计过等待时间
+         */
+        final boolean isRequeued;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        Entry(Request<?> request, RequestKey key, String host, int level, long enqueueNanos, boolean isRequeued){
+            this.request = request;
+            this.key = key;
+            this.host = host;
+            this.level = level;
+            this.enqueueNanos = enqueueNanos;
+            this.isRequeued = isRequeued;
+        }
+
+        boolean claim(){
+            return claimed.compareAndSet(false, true);
+        }
+
+        boolean isClaimed(){
+            return claimed.get();
+        }
+    }
+
+    /**
+     * 按照引用比较请求的key，Request.equals()比较的是缓存key，不能用来区分两个相同的流式请求
+     */
+    private static final class RequestKey {
+        final Request<?> request;
+
+        RequestKey(Request<?> request){
+            this.request = request;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RequestKey && ((RequestKey) o).request == request;
+        }
+    }
+
+    /**
+     * 单个host正在执行的请求数，以及它在每个级别等待执行的请求
+     */
+    private static class HostState {
+        final AtomicInteger running = new AtomicInteger(0);
+
+        private final List<ConcurrentLinkedDeque<Entry>> queues = new ArrayList<ConcurrentLinkedDeque<Entry>>(LEVEL_COUNT);
+
+        /**
+         * 是否在该级别的轮转队列中，或者正在被某个执行线程处理，保证每个级别的轮转队列中最多出现一次
+         */
+        final AtomicBoolean[] scheduled = new AtomicBoolean[LEVEL_COUNT];
+
+        HostState(){
+            for (int i = 0; i < LEVEL_COUNT; i++){
+                queues.add(new ConcurrentLinkedDeque<Entry>());
+                scheduled[i] = new AtomicBoolean(false);
+            }
+        }
+
+        ConcurrentLinkedDeque<Entry> queue(int level){
+            return queues.get(level);
+        }
+    }
+}
@@ -6,18 +6,90 @@ import android.os.Looper;
 import com.mecury.netlibrary.base.Request;
 import com.mecury.netlibrary.base.Response;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by 海飞 on 2016/8/5.
- * 请求结果投递类，将请求结果投递给UI线程
+ * 请求结果投递类，将请求结果投递给UI线程。
+ * <p>
+ * 批量模式下，完成的请求先放入无锁队列，只向目标线程投递一个任务，由该任务一次性分发队列中的结果；
+ * 每次分发的时间超过mFrameBudgetMs时重新投递剩余的结果，避免大量请求同时完成时阻塞主线程造成掉帧。
+ * 结果也可以投递到调用者指定的Executor上，这样在没有Looper的环境中同样可以使用。
+ * </p>
  */
 public class ResponseDelivery implements Executor{
 
-    Handler mResponseHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 默认每次分发的时间预算，约为一帧时间的一半
+     */
+    public static final long DEFAULT_FRAME_BUDGET_MS = 8;
+
+    /**
+     * 执行分发任务的Executor，默认投递到主线程
+     */
+    private final Executor mDeliveryExecutor;
+
+    /**
+     * 是否批量分发
+     */
+    private final boolean isBatching;
+
+    /**
+     * 每次分发的时间预算
+     */
+    private final long mFrameBudgetMs;
+
+    /**
+     * 等待分发的任务
+     */
+    private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * 是否已经投递了分发任务
+     */
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+
+    /**
+     * 分发任务，在目标线程中执行
+     */
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * 投递到主线程，批量分发
+     */
+    public ResponseDelivery(){
+        this(new MainThreadExecutor(), true, DEFAULT_FRAME_BUDGET_MS);
+    }
+
+    /**
+     * 投递到指定的Executor，批量分发
+     */
+    public ResponseDelivery(Executor executor){
+        this(executor, true, DEFAULT_FRAME_BUDGET_MS);
+    }
+
+    /**
+     * @param executor 执行分发任务的Executor
+     * @param batching 是否批量分发，为false时每个结果单独投递一次
+     * @param frameBudgetMs 批量分发时每次分发的时间预算
+     */
+    public ResponseDelivery(Executor executor, boolean batching, long frameBudgetMs){
+        mDeliveryExecutor = executor;
+        isBatching = batching;
+        mFrameBudgetMs = frameBudgetMs;
+    }
 
     /**
-     * 处理请求结果，将其执行在UI线程
+     * 处理请求结果，将其执行在UI线程，执行时请求已经被取消则不再回调
      * @param request
      * @param response
      * @return
@@ -26,6 +98,10 @@ public class ResponseDelivery implements Executor{
         Runnable respRunnable = new Runnable() {
             @Override
             public void run() {
+                //投递之后才被取消的请求同样不再回调
+                if (request.isCanceled()){
+                    return;
+                }
                 request.deliveryResponse(response);
             }
         };
@@ -35,6 +111,60 @@ public class ResponseDelivery implements Executor{
 
     @Override
     public void execute(Runnable runnable) {
-        mResponseHandler.post(runnable);
+        if (!isBatching){
+            mDeliveryExecutor.execute(runnable);
+            return;
+        }
+        mPendingTasks.offer(runnable);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain(){
+        if (isDrainScheduled.compareAndSet(false, true)){
+            mDeliveryExecutor.execute(mDrainRunnable);
+        }
+    }
+
+    /**
+     * 分发等待中的结果，超出时间预算时将剩余的结果留到下一次分发
+     */
+    private void drain(){
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mFrameBudgetMs);
+        Runnable task;
+        while ((task = mPendingTasks.poll()) != null){
+            try{
+                task.run();
+            }catch (RuntimeException e){
+                //回调抛出异常时保证剩余的结果还能继续分发
+                isDrainScheduled.set(false);
+                if (!mPendingTasks.isEmpty()){
+                    scheduleDrain();
+                }
+                throw e;
+            }
+            if (System.nanoTime() - deadline > 0 && !mPendingTasks.isEmpty()){
+                //超出预算，让出线程，剩余的结果在下一次分发
+                mDeliveryExecutor.execute(mDrainRunnable);
+                return;
+            }
+        }
+        isDrainScheduled.set(false);
+        //清除标记之前可能有新的结果加入
+        if (!mPendingTasks.isEmpty()){
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * 将任务投递到主线程执行
+     */
+    static class MainThreadExecutor implements Executor {
+
+        private final Handler mResponseHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            mResponseHandler.post(runnable);
+        }
     }
 }
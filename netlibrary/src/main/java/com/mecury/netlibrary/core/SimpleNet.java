@@ -34,4 +34,28 @@ public class SimpleNet {
         queue.start();
         return queue;
     }
+
+    /**
+     * 创建一个请求队列，使用指定的执行策略执行请求
+     * @param strategy 执行策略，参考ExecutionStrategyFactory
+     * @param httpStack 网络执行者
+     * @return
+     */
+    public static RequestQueue newRequestQueue(ExecutionStrategy strategy, HttpStack httpStack){
+        return newRequestQueue(strategy, httpStack, null);
+    }
+
+    /**
+     * 创建一个请求队列，结果通过指定的ResponseDelivery分发，例如投递到调用者提供的Executor上
+     * @param strategy 执行策略，参考ExecutionStrategyFactory
+     * @param httpStack 网络执行者
+     * @param delivery 结果分发器
+     * @return
+     */
+    public static RequestQueue newRequestQueue(ExecutionStrategy strategy, HttpStack httpStack,
+                                               ResponseDelivery delivery){
+        RequestQueue queue = new RequestQueue(strategy, httpStack, delivery);
+        queue.start();
+        return queue;
+    }
 }
@@ -0,0 +1,122 @@
+package com.mecury.netlibrary.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 请求在队列中等待时间的直方图，桶的上界按照2的幂增长：1ms、2ms、4ms ... 65536ms，最后一个桶记录更长的等待。
+ * 记录与读取都是线程安全的，读取得到的是近似的快照
+ */
+public class WaitTimeHistogram {
+
+    /**
+     * 有上界的桶数，最后一个桶的上界为2^(BOUNDED_BUCKETS - 1)毫秒
+     */
+    private static final int BOUNDED_BUCKETS = 17;
+
+    public static final int BUCKET_COUNT = BOUNDED_BUCKETS + 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mTotalMs = new AtomicLong();
+
+    private final AtomicLong mMaxMs = new AtomicLong();
+
+    /**
+     * 记录一次等待
+     */
+    public void record(long waitNanos) {
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(Math.max(0, waitNanos));
+        mBuckets.incrementAndGet(bucketOf(waitMs));
+        mCount.incrementAndGet();
+        mTotalMs.addAndGet(waitMs);
+        long max;
+        while (waitMs > (max = mMaxMs.get()) && !mMaxMs.compareAndSet(max, waitMs)) {
+            //其他线程同时更新了最大值，重新比较
+        }
+    }
+
+    /**
+     * 等待时间所在的桶，小于1ms的等待记录在第一个桶中
+     */
+    private static int bucketOf(long waitMs) {
+        if (waitMs < 1) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(waitMs - 1);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * 第index个桶的上界(包含)，最后一个桶返回Long.MAX_VALUE
+     */
+    public static long getBucketUpperBoundMs(int index) {
+        return index >= BOUNDED_BUCKETS ? Long.MAX_VALUE : 1L << index;
+    }
+
+    /**
+     * 每个桶中的次数
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxMs() {
+        return mMaxMs.get();
+    }
+
+    public long getMeanMs() {
+        long count = mCount.get();
+        return count > 0 ? mTotalMs.get() / count : 0;
+    }
+
+    /**
+     * 百分位的等待时间，返回该百分位所在桶的上界，不超过记录到的最大值
+     * @param percentile 取值为(0, 100]
+     */
+    public long getPercentileMs(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100);
+        long accumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            accumulated += counts[i];
+            if (accumulated >= target) {
+                return Math.min(getBucketUpperBoundMs(i), getMaxMs());
+            }
+        }
+        return getMaxMs();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalMs.set(0);
+        mMaxMs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMs() + "ms, p50=" + getPercentileMs(50)
+                + "ms, p99=" + getPercentileMs(99) + "ms, max=" + getMaxMs() + "ms";
+    }
+}
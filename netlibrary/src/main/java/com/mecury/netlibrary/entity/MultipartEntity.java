@@ -8,12 +8,14 @@ import org.apache.http.util.TextUtils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -23,6 +25,11 @@ import java.util.Random;
  * Android中的多参数类型的Entity实体类,用户可以使用该类来上传文件、文本参数、二进制参数,
  * 不需要依赖于httpmime.jar来实现上传文件的功能.
  * </p>
+ * <p>
+ * 添加参数时只记录参数的描述(文本、字节数组或者文件)并计算其长度，writeTo()时才依次写出，
+ * 文件边读取边写入连接，上传几百MB的文件也只占用固定大小的内存。
+ * 文件的长度在添加时确定，写出之前文件不能被修改。
+ * </p>
  */
 public class MultipartEntity implements HttpEntity {
 
@@ -33,7 +40,7 @@ public class MultipartEntity implements HttpEntity {
      */
     private final String NEW_LINE_STR = "\r\n";
     private final String CONTENT_TYPE = "Content-Type: ";
-    private final String CONTENT_DISPOSITION = "Content_Disposition: ";
+    private final String CONTENT_DISPOSITION = "Content-Disposition: ";
 
     /**
      * 文本参数与字符集
@@ -55,18 +62,29 @@ public class MultipartEntity implements HttpEntity {
      */
     private final byte[] BIT_ENCODING = "Content-Transfer-Encoding: 8bit\r\n\r\n".getBytes();
 
+    /**
+     * 写出文件时的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
     /**
      * 分隔符
      */
     private String mBoundary = null;
 
     /**
-     * 输出流
+     * 已经添加的参数
      */
-    private ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream();
+    private final List<Part> mParts = new ArrayList<Part>();
+
+    /**
+     * 所有参数加上结束符的长度
+     */
+    private long mContentLength;
 
     public MultipartEntity(){
         this.mBoundary = generateBoundary();
+        mContentLength = getEndBoundaryBytes().length;
     }
 
     /**
@@ -81,11 +99,15 @@ public class MultipartEntity implements HttpEntity {
         return buf.toString();
     }
 
+    public String getBoundary() {
+        return mBoundary;
+    }
+
     /**
-     * 参数开头的分隔符
+     * 参数最末尾的结束符
      */
-    private void writeFirstBoundary() throws IOException {
-        mOutputStream.write(("--" + mBoundary + "\r\n").getBytes());
+    private byte[] getEndBoundaryBytes() {
+        return ("--" + mBoundary + "--\r\n").getBytes();
     }
 
     /**
@@ -94,29 +116,7 @@ public class MultipartEntity implements HttpEntity {
      * @param value
      */
     public void addStringPart(final String paramName, final String value){
-        writeToOutputStream(paramName, value.getBytes(), TYPE_TEXT_CHARSET, BIT_ENCODING, "");
-    }
-
-    /**
-     * 将数据写入到输入流中
-     * @param paramName key
-     * @param rawData
-     * @param encodingBytes
-     * @param type
-     * @param fileName
-     * @return
-     */
-    private void writeToOutputStream(String paramName, byte[] rawData, String type, byte[] encodingBytes, String fileName){
-        try{
-            writeFirstBoundary();
-            mOutputStream.write(getContentDispositionBytes(paramName, fileName));
-            mOutputStream.write((CONTENT_TYPE + type + NEW_LINE_STR).getBytes());
-            mOutputStream.write(encodingBytes);
-            mOutputStream.write(rawData);
-            mOutputStream.write(NEW_LINE_STR.getBytes());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        addPart(new BytesPart(getPartHeaderBytes(paramName, "", TYPE_TEXT_CHARSET, BIT_ENCODING), value.getBytes()));
     }
 
     /**
@@ -124,39 +124,39 @@ public class MultipartEntity implements HttpEntity {
      * @param paramName key
      * @param rawData
      */
-    private void addBinaryPart(String paramName, final byte[] rawData){
-        writeToOutputStream(paramName, rawData, TYPE_OCTET_STREAM, BINARY_ENCODING, "no-file");
+    public void addBinaryPart(String paramName, final byte[] rawData){
+        addPart(new BytesPart(getPartHeaderBytes(paramName, "no-file", TYPE_OCTET_STREAM, BINARY_ENCODING), rawData));
     }
 
     /**
-     * 添加文件参数，可以实现文件上传的功能
+     * 添加文件参数，可以实现文件上传的功能。文件在writeTo()时才读取
      * @param key
      * @param file
      * @return
      */
     public void addFilePart(final String key, final File file){
-        InputStream fin = null;
+        addPart(new FilePart(getPartHeaderBytes(key, file.getName(), TYPE_OCTET_STREAM, BINARY_ENCODING), file));
+    }
+
+    private void addPart(Part part){
+        mParts.add(part);
+        mContentLength += part.length();
+    }
+
+    /**
+     * 参数的头部：分隔符、Content-Disposition、Content-Type与Content-Transfer-Encoding
+     */
+    private byte[] getPartHeaderBytes(String paramName, String fileName, String type, byte[] encodingBytes){
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
         try{
-            fin = new FileInputStream(file);
-            writeFirstBoundary();
-            final String type = CONTENT_TYPE + TYPE_OCTET_STREAM + NEW_LINE_STR;
-            mOutputStream.write(getContentDispositionBytes(key, file.getName()));
-            mOutputStream.write(type.getBytes());
-            mOutputStream.write(BINARY_ENCODING);
-
-            final byte[] tmp = new byte[4096];
-            int len = 0;
-            while((len = fin.read(tmp)) != -1){
-                mOutputStream.write(tmp, 0, len);
-            }
-            mOutputStream.flush();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            header.write(("--" + mBoundary + "\r\n").getBytes());
+            header.write(getContentDispositionBytes(paramName, fileName));
+            header.write((CONTENT_TYPE + type + NEW_LINE_STR).getBytes());
+            header.write(encodingBytes);
         } catch (IOException e) {
             e.printStackTrace();
-        }finally{
-            closeSilently(fin);
         }
+        return header.toByteArray();
     }
 
     /**
@@ -164,7 +164,7 @@ public class MultipartEntity implements HttpEntity {
      * @param
      * @return
      */
-    private void closeSilently(Closeable closeable){
+    private static void closeSilently(Closeable closeable){
         try{
             if (closeable != null){
                 closeable.close();
@@ -190,9 +190,12 @@ public class MultipartEntity implements HttpEntity {
         return stringBuilder.append(NEW_LINE_STR).toString().getBytes();
     }
 
+    /**
+     * 参数与文件只是记录了描述，可以重复写出
+     */
     @Override
     public boolean isRepeatable() {
-        return false;
+        return true;
     }
 
     @Override
@@ -200,9 +203,12 @@ public class MultipartEntity implements HttpEntity {
         return false;
     }
 
+    /**
+     * 添加参数时已经计算好的长度，可以用于HttpURLConnection的固定长度模式
+     */
     @Override
     public long getContentLength() {
-        return mOutputStream.toByteArray().length;
+        return mContentLength;
     }
 
     @Override
@@ -215,19 +221,26 @@ public class MultipartEntity implements HttpEntity {
         return null;
     }
 
+    /**
+     * 以流的形式读取完整的body会将其读取到内存中，上传时应该使用writeTo()
+     */
     @Override
     public InputStream getContent() throws IOException, UnsupportedOperationException {
-        return new ByteArrayInputStream(mOutputStream.toByteArray());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeTo(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
     }
 
+    /**
+     * 依次写出所有参数与结束符，文件边读取边写出
+     */
     @Override
     public void writeTo(OutputStream outputstream) throws IOException {
-        //参数最末尾的结束符
-        final String endString = "--" + mBoundary + "--\r\n";
+        for (Part part : mParts){
+            part.writeTo(outputstream);
+        }
         //写入结束符
-        mOutputStream.write(endString.getBytes());
-
-        outputstream.write(mOutputStream.toByteArray());
+        outputstream.write(getEndBoundaryBytes());
     }
 
     @Override
@@ -241,4 +254,92 @@ public class MultipartEntity implements HttpEntity {
             throw new UnsupportedOperationException("Streaming entity does not implement #consumeContent()");
         }
     }
+
+    /**
+     * 参数的描述：头部、内容以及结尾的换行
+     */
+    private abstract class Part {
+        final byte[] header;
+
+        Part(byte[] header){
+            this.header = header;
+        }
+
+        /**
+         * 参数的总长度
+         */
+        long length(){
+            return header.length + contentLength() + NEW_LINE_STR.length();
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            outputStream.write(header);
+            writeContent(outputStream);
+            outputStream.write(NEW_LINE_STR.getBytes());
+        }
+
+        abstract long contentLength();
+
+        abstract void writeContent(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * 文本与二进制参数
+     */
+    private class BytesPart extends Part {
+        private final byte[] mData;
+
+        BytesPart(byte[] header, byte[] data){
+            super(header);
+            mData = data;
+        }
+
+        @Override
+        long contentLength(){
+            return mData.length;
+        }
+
+        @Override
+        void writeContent(OutputStream outputStream) throws IOException {
+            outputStream.write(mData);
+        }
+    }
+
+    /**
+     * 文件参数，长度在添加时确定，写出时只写出该长度的内容
+     */
+    private class FilePart extends Part {
+        private final File mFile;
+        private final long mLength;
+
+        FilePart(byte[] header, File file){
+            super(header);
+            mFile = file;
+            mLength = file.length();
+        }
+
+        @Override
+        long contentLength(){
+            return mLength;
+        }
+
+        @Override
+        void writeContent(OutputStream outputStream) throws IOException {
+            InputStream fin = new FileInputStream(mFile);
+            try{
+                final byte[] tmp = new byte[BUFFER_SIZE];
+                long remaining = mLength;
+                while (remaining > 0){
+                    int len = fin.read(tmp, 0, (int) Math.min(tmp.length, remaining));
+                    if (len == -1){
+                        throw new EOFException("File " + mFile + " was truncated while uploading");
+                    }
+                    outputStream.write(tmp, 0, len);
+                    remaining -= len;
+                }
+            }finally{
+                closeSilently(fin);
+            }
+        }
+    }
 }
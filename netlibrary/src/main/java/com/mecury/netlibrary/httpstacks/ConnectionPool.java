@@ -0,0 +1,214 @@
+package com.mecury.netlibrary.httpstacks;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * HttpURLConnStack连接复用模式的配置与统计。
+ * <p>
+ * HttpURLConnection的连接池由系统实现(Android上为内置的okhttp，JDK上为KeepAliveCache)，不能直接访问，
+ * 只能在第一次建立连接之前通过系统属性http.maxConnections与http.keepAliveDuration配置，install()负责设置这些属性。
+ * 这些属性是整个进程共享的，不能按HttpStack分别配置：所有HttpURLConnStack实际使用的是第一次install()的配置，
+ * 之后以不同的配置install()会抛出IllegalStateException，而不是悄悄地使用第一次的配置。
+ * 同时本类按照相同的规则模拟每个host的空闲连接：请求结束并且连接被完整读取时记为一个空闲连接，
+ * 下一个同host的请求在空闲超时之前开始时记为复用。因此复用率是根据连接的释放情况估算出来的，并不是系统连接池的真实数据。
+ * </p>
+ */
+public class ConnectionPool {
+
+    /**
+     * 默认每个host最多保持的空闲连接数，与系统默认值一致
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+
+    /**
+     * 默认空闲连接的存活时间
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    /**
+     * 已经写入系统属性的配置，系统属性只能在第一次建立连接之前设置一次，为null时还没有设置
+     */
+    private static ConnectionPool sInstalledPool;
+
+    private final int mMaxIdlePerHost;
+
+    private final long mKeepAliveMs;
+
+    /**
+     * 每个host的空闲连接，保存连接变为空闲的时间
+     */
+    private final Map<String, Deque<Long>> mIdleConnections = new HashMap<String, Deque<Long>>();
+
+    private long mRequestCount = 0;
+    private long mReuseCount = 0;
+    private long mDiscardCount = 0;
+    private long mExpiredCount = 0;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * @param maxIdlePerHost 每个host最多保持的空闲连接数
+     * @param keepAliveMs 空闲连接的存活时间
+     */
+    public ConnectionPool(int maxIdlePerHost, long keepAliveMs) {
+        if (maxIdlePerHost < 1) {
+            throw new IllegalArgumentException("maxIdlePerHost < 1: " + maxIdlePerHost);
+        }
+        if (keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs <= 0: " + keepAliveMs);
+        }
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * 将配置写入系统属性，需要在第一次建立连接之前调用。系统属性是进程全局的，只有第一次调用生效，
+     * 之后的调用配置相同时直接返回
+     *
+     * @throws IllegalStateException 已经以不同的空闲连接数或者存活时间install()过
+     */
+    public void install() {
+        synchronized (ConnectionPool.class) {
+            if (sInstalledPool != null) {
+                if (sInstalledPool.mMaxIdlePerHost != mMaxIdlePerHost || sInstalledPool.mKeepAliveMs != mKeepAliveMs) {
+                    throw new IllegalStateException("HttpURLConnection pool is process-wide and already installed as "
+                            + "maxIdlePerHost=" + sInstalledPool.mMaxIdlePerHost + ",keepAliveMs="
+                            + sInstalledPool.mKeepAliveMs + ", can not install maxIdlePerHost=" + mMaxIdlePerHost
+                            + ",keepAliveMs=" + mKeepAliveMs);
+                }
+                return;
+            }
+            sInstalledPool = this;
+        }
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(mMaxIdlePerHost));
+        System.setProperty("http.keepAliveDuration", String.valueOf(mKeepAliveMs));
+    }
+
+    /**
+     * 请求开始时调用，返回该请求是否会复用空闲连接
+     */
+    public synchronized boolean acquire(String address) {
+        mRequestCount++;
+        Deque<Long> idle = mIdleConnections.get(address);
+        if (idle == null) {
+            return false;
+        }
+        evictExpired(idle, System.currentTimeMillis());
+        //系统连接池优先使用最近释放的连接
+        Long idleAt = idle.pollLast();
+        if (idle.isEmpty()) {
+            mIdleConnections.remove(address);
+        }
+        if (idleAt == null) {
+            return false;
+        }
+        mReuseCount++;
+        return true;
+    }
+
+    /**
+     * 请求结束时调用
+     * @param address
+     * @param reusable 连接是否被完整读取并且服务端没有要求关闭
+     */
+    public synchronized void release(String address, boolean reusable) {
+        if (!reusable) {
+            mDiscardCount++;
+            return;
+        }
+        Deque<Long> idle = mIdleConnections.get(address);
+        if (idle == null) {
+            idle = new ArrayDeque<Long>();
+            mIdleConnections.put(address, idle);
+        }
+        if (idle.size() >= mMaxIdlePerHost) {
+            //超过空闲连接上限时系统会关闭多余的连接
+            idle.pollFirst();
+            mDiscardCount++;
+        }
+        idle.addLast(System.currentTimeMillis());
+    }
+
+    private void evictExpired(Deque<Long> idle, long now) {
+        Iterator<Long> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= mKeepAliveMs) {
+                iterator.remove();
+                mExpiredCount++;
+            }
+        }
+    }
+
+    /**
+     * 连接的地址，协议、host与端口都相同的请求才能复用连接
+     */
+    static String addressOf(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    public int getMaxIdlePerHost() {
+        return mMaxIdlePerHost;
+    }
+
+    public long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    public synchronized long requestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long reuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * 因为没有读取完毕、服务端要求关闭或者超过空闲上限而关闭的连接数
+     */
+    public synchronized long discardCount() {
+        return mDiscardCount;
+    }
+
+    /**
+     * 因为空闲超时而关闭的连接数
+     */
+    public synchronized long expiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * 估算的连接复用率，0到1之间
+     */
+    public synchronized float reuseRate() {
+        return mRequestCount != 0 ? (float) mReuseCount / mRequestCount : 0f;
+    }
+
+    /**
+     * 当前估算的空闲连接数
+     */
+    public synchronized int idleConnectionCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Deque<Long> idle : mIdleConnections.values()) {
+            evictExpired(idle, now);
+            count += idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionPool[maxIdlePerHost=" + mMaxIdlePerHost + ",keepAliveMs=" + mKeepAliveMs
+                + ",requests=" + mRequestCount + ",reused=" + mReuseCount + ",discarded=" + mDiscardCount
+                + ",expired=" + mExpiredCount + ",reuseRate=" + (int) (reuseRate() * 100) + "%]";
+    }
+}
@@ -0,0 +1,140 @@
+package com.mecury.netlibrary.httpstacks;
+
+import com.mecury.netlibrary.base.CountingInputStream;
+import com.mecury.netlibrary.base.ProgressTracker;
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.entity.BasicHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 透明压缩，参考okhttp3.internal.http.BridgeInterceptor。
+ * <p>
+ * 请求没有指定Accept-Encoding与Range时由HttpStack添加Accept-Encoding: gzip, deflate，
+ * 结果以流的形式边读取边解压，同时去掉Content-Encoding与Content-Length，调用者拿到的就是解压后的数据。
+ * 调用者自己指定了Accept-Encoding时不会解压，由调用者自己处理。
+ * </p>
+ */
+final class ContentDecoder {
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    static final String HEADER_RANGE = "Range";
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private ContentDecoder(){
+    }
+
+    /**
+     * 是否由HttpStack添加Accept-Encoding并透明解压
+     */
+    static boolean isTransparent(Request<?> request){
+        //请求部分内容时压缩后的偏移没有意义，与BridgeInterceptor一致不添加
+        return !containsHeader(request.getHeaders(), HEADER_ACCEPT_ENCODING)
+                && !containsHeader(request.getHeaders(), HEADER_RANGE)
+                && !containsHeader(request.getAdditionalHeaders(), HEADER_ACCEPT_ENCODING)
+                && !containsHeader(request.getAdditionalHeaders(), HEADER_RANGE);
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name){
+        for (String key : headers.keySet()){
+            if (name.equalsIgnoreCase(key)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否是可以解压的编码
+     */
+    static boolean isSupported(String contentEncoding){
+        return "gzip".equalsIgnoreCase(contentEncoding) || "deflate".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * 为结果创建Entity：统计从网络读取的字节数，transparent为true并且结果经过压缩时边读取边解压
+     * @param response 解压时会去掉其Content-Encoding与Content-Length，需要在添加header之后调用
+     * @param content 网络输入流，可以为null
+     * @param contentLength
+     * @param contentType
+     * @param contentEncoding
+     * @param transparent 是否由HttpStack添加了Accept-Encoding
+     * @param request 统计下载进度，进度为从网络读取的字节数
+     */
+    static BasicHttpEntity createEntity(Response response, InputStream content, long contentLength,
+                                        String contentType, String contentEncoding, boolean transparent,
+                                        Request<?> request) throws IOException {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentType(contentType);
+        if (content == null){
+            entity.setContentLength(contentLength);
+            entity.setContentEncoding(contentEncoding);
+            return entity;
+        }
+        ProgressTracker tracker = request.newProgressTracker(false, contentLength);
+        if (tracker != null){
+            content = tracker.wrap(content);
+        }
+        CountingInputStream compressed = new CountingInputStream(content);
+        if (transparent && isSupported(contentEncoding)){
+            CountingInputStream decoded = new CountingInputStream(decode(compressed, contentEncoding));
+            response.setByteCounters(compressed, decoded);
+            response.removeHeaders(HEADER_CONTENT_ENCODING);
+            response.removeHeaders(HEADER_CONTENT_LENGTH);
+            entity.setContent(decoded);
+            entity.setContentLength(-1);
+            return entity;
+        }
+        response.setByteCounters(compressed, compressed);
+        entity.setContent(compressed);
+        entity.setContentLength(contentLength);
+        entity.setContentEncoding(contentEncoding);
+        return entity;
+    }
+
+    /**
+     * 创建解压的输入流，body为空时(例如HEAD请求与304)返回空的输入流
+     */
+    static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int first = pushback.read();
+        if (first == -1){
+            in.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        int second = pushback.read();
+        if (second != -1){
+            pushback.unread(second);
+        }
+        pushback.unread(first);
+        if ("gzip".equalsIgnoreCase(contentEncoding)){
+            return new GZIPInputStream(pushback);
+        }
+        //deflate有的服务端返回zlib格式，有的返回没有zlib头的原始deflate数据，根据zlib头判断
+        boolean zlibWrapped = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlibWrapped);
+        return new InflaterInputStream(pushback, inflater){
+            @Override
+            public void close() throws IOException {
+                try{
+                    super.close();
+                }finally {
+                    //指定了Inflater时InflaterInputStream不会释放其native内存
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,50 @@
+package com.mecury.netlibrary.httpstacks;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 使用gzip压缩请求body的Entity，发送时边压缩边写入连接。
+ * 压缩后的长度事先未知，使用分块传输
+ */
+class GzipRequestEntity extends HttpEntityWrapper {
+
+    GzipRequestEntity(HttpEntity entity) {
+        super(entity);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", "gzip");
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        throw new UnsupportedOperationException("GzipRequestEntity can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outStream, HttpURLConnStack.GZIP_BUFFER_SIZE);
+        wrappedEntity.writeTo(gzipOutputStream);
+        //只结束压缩，连接的输出流由HttpClient关闭
+        gzipOutputStream.finish();
+    }
+}
@@ -2,6 +2,7 @@ package com.mecury.netlibrary.httpstacks;
 
 import android.net.http.AndroidHttpClient;
 
+import com.mecury.netlibrary.base.ProgressTracker;
 import com.mecury.netlibrary.base.Request;
 import com.mecury.netlibrary.base.Response;
 import com.mecury.netlibrary.config.HttpClientConfig;
@@ -34,12 +35,32 @@ public class HttpClientStack implements HttpStack{
     /**
      * 使用HttpClient执行网络请求时的Https配置
      */
-    HttpClientConfig mConfig = HttpClientConfig.getConfig();
+    private final HttpClientConfig mConfig;
 
     /**
      * HttpClient
      */
-    HttpClient mHttpClient = AndroidHttpClient.newInstance(mConfig.userAgent);
+    private final HttpClient mHttpClient;
+
+    public HttpClientStack(){
+        this(HttpClientConfig.getConfig());
+    }
+
+    /**
+     * @param config 该HttpStack自己的配置，userAgent与SSLSocketFactory在创建时读取，超时时间在每次请求时读取
+     */
+    public HttpClientStack(HttpClientConfig config){
+        if (config == null){
+            throw new NullPointerException("config == null");
+        }
+        mConfig = config;
+        mHttpClient = AndroidHttpClient.newInstance(config.userAgent);
+        configHttps();
+    }
+
+    public HttpClientConfig getConfig(){
+        return mConfig;
+    }
 
     /**
      * 回调方法，目测在NetWorkExecutor中被调用
@@ -49,19 +70,31 @@ public class HttpClientStack implements HttpStack{
     @Override
     public Response performRequest(Request<?> request) {
         try{
-            HttpUriRequest httpRequest = createHttpRequest(request);
+            final HttpUriRequest httpRequest = createHttpRequest(request);
+            //取消请求时中断HttpClient的请求，释放连接
+            request.setAbortHandler(new Request.AbortHandler() {
+                @Override
+                public void abort() {
+                    httpRequest.abort();
+                }
+            });
             //添加连接参数
-            setConnectionParams(httpRequest);
+            setConnectionParams(httpRequest, request);
             //添加header
             addHeaders(httpRequest, request.getHeaders());
-            //https设置
-            configHttps(request);
+            addHeaders(httpRequest, request.getAdditionalHeaders());
+            boolean transparentEncoding = ContentDecoder.isTransparent(request);
+            if (transparentEncoding){
+                httpRequest.setHeader(ContentDecoder.HEADER_ACCEPT_ENCODING, ContentDecoder.ACCEPT_ENCODING);
+            }
             //执行请求
             HttpResponse response = mHttpClient.execute(httpRequest);
             //构建Response
             Response rawResponse = new Response(response.getStatusLine());
-            //设置Entity
-            rawResponse.setEntity(response.getEntity());
+            rawResponse.setHeaders(response.getAllHeaders());
+            //设置Entity，流式结果在关闭时释放连接，压缩的结果边读取边解压
+            rawResponse.setEntity(decodeEntity(rawResponse, response.getEntity(), request, transparentEncoding),
+                    request.isStreamingResponse());
             return rawResponse;
         } catch (ClientProtocolException e) {
             e.printStackTrace();
@@ -71,27 +104,36 @@ public class HttpClientStack implements HttpStack{
         return null;
     }
 
+    private static HttpEntity decodeEntity(Response response, HttpEntity entity, Request<?> request,
+                                           boolean transparentEncoding) throws IOException {
+        if (entity == null){
+            return null;
+        }
+        String contentType = entity.getContentType() != null ? entity.getContentType().getValue() : null;
+        String contentEncoding = entity.getContentEncoding() != null ? entity.getContentEncoding().getValue() : null;
+        return ContentDecoder.createEntity(response, entity.getContent(), entity.getContentLength(),
+                contentType, contentEncoding, transparentEncoding, request);
+    }
+
     /**
-     * 如果是Https请求，则使用用户配置的SSlSocketFactory
-     * @param request
-     * @return 
+     * 使用用户配置的SSlSocketFactory处理Https请求，只在创建时注册一次，注册在该HttpClient自己的SchemeRegistry上
      */
-    private void configHttps(Request<?> request){
+    private void configHttps(){
         SSLSocketFactory sslSocketFactory = mConfig.getSslSocketFactory();
-        if (request.isHttps() && sslSocketFactory != null){
+        if (sslSocketFactory != null){
             Scheme sch = new Scheme("https", sslSocketFactory, 443);
             mHttpClient.getConnectionManager().getSchemeRegistry().register(sch);
         }
     }
 
     /**
-     * 设置连接参数，这里比较简单，一些优化设置没有写
+     * 设置连接参数，这里比较简单，一些优化设置没有写。超时时间不超过请求剩余的时间
      */
-    private void setConnectionParams(HttpUriRequest httpUriRequest){
+    private void setConnectionParams(HttpUriRequest httpUriRequest, Request<?> request){
         HttpParams httpParams = httpUriRequest.getParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, mConfig.connTimeOunt);
+        HttpConnectionParams.setConnectionTimeout(httpParams, request.limitTimeout(mConfig.connTimeOunt));
         //规定的时间内一直没有读取数据就抛出异常
-        HttpConnectionParams.setSoTimeout(httpParams, mConfig.soTimeOut);
+        HttpConnectionParams.setSoTimeout(httpParams, request.limitTimeout(mConfig.soTimeOut));
     }
 
     /**
@@ -138,11 +180,23 @@ public class HttpClientStack implements HttpStack{
      * @param request
      */
     private static void setEntityIfNonEmptyBody(HttpEntityEnclosingRequest httpRequest, Request<?> request){
-        byte[] body = request.getBody();
-        if (body != null){
-            HttpEntity entity = new ByteArrayEntity(body);
-            httpRequest.setEntity(entity);
+        HttpEntity entity;
+        if (request.isStreamingBody()){
+            entity = new StreamingRequestEntity(request);
+        }else{
+            byte[] body = request.getBody();
+            if (body == null){
+                return;
+            }
+            entity = new ByteArrayEntity(body);
+        }
+        //统计压缩前写入的字节数
+        ProgressTracker tracker = request.newProgressTracker(true, entity.getContentLength());
+        if (tracker != null){
+            entity = new ProgressRequestEntity(entity, tracker);
         }
+        //压缩的body边压缩边写入连接，Content-Encoding由HttpClient根据Entity添加
+        httpRequest.setEntity(request.isGzipBody() ? new GzipRequestEntity(entity) : entity);
     }
 }
 
@@ -17,4 +17,23 @@ public final class HttpStackFactory {
         }
         return new HttpClientStack();
     }
+
+    /**
+     * 应用添加了okhttp依赖时使用OkHttpStack，否则根据api版本选择
+     */
+    public static HttpStack createPreferredHttpStack(){
+        if (isOkHttpAvailable()){
+            return new OkHttpStack();
+        }
+        return createHttpStack();
+    }
+
+    private static boolean isOkHttpAvailable(){
+        try {
+            Class.forName("okhttp3.OkHttpClient");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.mecury.netlibrary.httpstacks;
 
+import com.mecury.netlibrary.base.ProgressTracker;
 import com.mecury.netlibrary.base.Request;
 import com.mecury.netlibrary.base.Response;
 import com.mecury.netlibrary.config.HttpUrlConnConfig;
@@ -8,73 +9,176 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
-import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 
+import java.io.Closeable;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Created by 海飞 on 2016/8/5.
  * 对于API 9 以上使用HttpURLConnection执行网络请求的HttpStack
+ * <p>
+ * 默认每次请求结束后断开连接；连接复用模式下不再调用disconnect()，而是读取完剩余的数据后关闭输入流，
+ * 由系统将连接放回连接池，后续同一个host的请求可以省去TCP与TLS握手。
+ * </p>
  */
 public class HttpURLConnStack implements HttpStack{
 
     /**
-     * 配置Https
+     * 复用模式下释放连接时最多读取并丢弃的剩余字节数，超过时直接断开连接
      */
-    HttpUrlConnConfig mConfig = HttpUrlConnConfig.getConfig();
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /**
+     * 压缩请求body时的缓冲区大小
+     */
+    static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * 超时与Https配置
+     */
+    private final HttpUrlConnConfig mConfig;
+
+    /**
+     * 连接复用的配置与统计，为null时每次请求结束后断开连接
+     */
+    private final ConnectionPool mConnectionPool;
+
+    public HttpURLConnStack(){
+        this(HttpUrlConnConfig.getConfig(), null);
+    }
+
+    /**
+     * 连接复用模式，使用默认的配置
+     * @param connectionPool 空闲连接数与存活时间的配置，会在第一次建立连接之前写入系统属性
+     * @throws IllegalStateException 系统连接池已经以不同的配置初始化过，见ConnectionPool.install()
+     */
+    public HttpURLConnStack(ConnectionPool connectionPool){
+        this(HttpUrlConnConfig.getConfig(), connectionPool);
+    }
+
+    /**
+     * @param config 该HttpStack自己的超时与Https配置
+     * @param connectionPool 连接复用的配置，为null时每次请求结束后断开连接。空闲连接数与存活时间是进程全局的，
+     *                       所有HttpURLConnStack需要使用相同的配置，统计数据则属于各自的ConnectionPool
+     * @throws IllegalStateException 系统连接池已经以不同的配置初始化过，见ConnectionPool.install()
+     */
+    public HttpURLConnStack(HttpUrlConnConfig config, ConnectionPool connectionPool){
+        if (config == null){
+            throw new NullPointerException("config == null");
+        }
+        mConfig = config;
+        mConnectionPool = connectionPool;
+        if (connectionPool != null){
+            connectionPool.install();
+        }
+    }
+
+    public ConnectionPool getConnectionPool(){
+        return mConnectionPool;
+    }
+
+    public HttpUrlConnConfig getConfig(){
+        return mConfig;
+    }
 
     /**
      * 回调方法，目测在NetWorkExecutor中被调用
      */
     @Override
     public Response performRequest(Request<?> request) {
+        if (mConnectionPool != null){
+            return performPooledRequest(request);
+        }
         HttpURLConnection urlConnection = null;
+        boolean keepConnection = false;
         try{
             //设置请求参数
-            urlConnection = createUrlConnection(request.getUrl());
+            urlConnection = createUrlConnection(request);
+            //取消请求时断开连接，阻塞在读写上的执行线程会立即抛出异常
+            request.setAbortHandler(new ConnectionCloser(urlConnection));
             //设置headers
-            setRequestHeaders(urlConnection, request);
+            boolean transparentEncoding = setRequestHeaders(urlConnection, request);
             //设置Body参数
             setRequestParams(urlConnection, request);
-            //https配置
-            configHttps(request);
-            return fetchResponse(urlConnection);
+            Response response = fetchResponse(urlConnection, request, null, transparentEncoding);
+            if (response.isStreaming()){
+                //流式结果读取完毕后再断开连接
+                response.setConnectionCloser(new ConnectionCloser(urlConnection));
+                keepConnection = true;
+            }
+            return response;
         } catch (IOException e) {
             e.printStackTrace();
         }finally{
+            if (urlConnection != null && !keepConnection){
+                urlConnection.disconnect();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 连接复用模式下执行请求，不断开连接，结果读取完毕后由PooledInputStream归还连接
+     */
+    private Response performPooledRequest(Request<?> request){
+        HttpURLConnection urlConnection = null;
+        ConnectionLease lease = null;
+        try{
+            urlConnection = createUrlConnection(request);
+            String address = ConnectionPool.addressOf(urlConnection.getURL());
+            mConnectionPool.acquire(address);
+            lease = new ConnectionLease(address);
+            request.setAbortHandler(new ConnectionCloser(urlConnection));
+            boolean transparentEncoding = setRequestHeaders(urlConnection, request);
+            setRequestParams(urlConnection, request);
+            //读取非流式结果时会读到末尾并关闭输入流，流式结果在Response.close()时关闭
+            return fetchResponse(urlConnection, request, lease, transparentEncoding);
+        } catch (IOException e) {
+            e.printStackTrace();
             if (urlConnection != null){
                 urlConnection.disconnect();
             }
+            //读取body失败时PooledInputStream可能已经归还了连接
+            if (lease != null){
+                lease.release(false);
+            }
         }
         return null;
     }
 
     /**
-     * 创建URlConnection，并设置一些参数
-     * @param url
+     * 创建URlConnection，并设置一些参数，超时时间不超过请求剩余的时间
+     * @param request
      * @return
      */
-    private HttpURLConnection createUrlConnection(String url) throws IOException {
-        URL newURL = new URL(url);
+    private HttpURLConnection createUrlConnection(Request<?> request) throws IOException {
+        URL newURL = new URL(request.getUrl());
         URLConnection urlConnection =newURL.openConnection();
-        urlConnection.setConnectTimeout(mConfig.connTimeOunt);
-        urlConnection.setReadTimeout(mConfig.soTimeOut);
+        urlConnection.setConnectTimeout(request.limitTimeout(mConfig.connTimeOunt));
+        urlConnection.setReadTimeout(request.limitTimeout(mConfig.soTimeOut));
         urlConnection.setDoInput(true);
         urlConnection.setUseCaches(false);
+        //https配置，必须在建立连接之前设置
+        configHttps(urlConnection);
         return (HttpURLConnection) urlConnection;
     }
 
@@ -82,13 +186,22 @@ public class HttpURLConnStack implements HttpStack{
      * 设置请求头部
      * @param conn
      * @param request
-     * @return
+     * @return 是否添加了Accept-Encoding，需要透明解压结果
      */
-    private void setRequestHeaders(HttpURLConnection conn, Request<?> request){
+    private boolean setRequestHeaders(HttpURLConnection conn, Request<?> request){
         Set<String> headersKeys = request.getHeaders().keySet();
         for (String headerName : headersKeys){
             conn.addRequestProperty(headerName, request.getHeaders().get(headerName));
         }
+        //本次执行附加的header，例如缓存验证条件
+        for (Entry<String, String> header : request.getAdditionalHeaders().entrySet()){
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (ContentDecoder.isTransparent(request)){
+            conn.setRequestProperty(ContentDecoder.HEADER_ACCEPT_ENCODING, ContentDecoder.ACCEPT_ENCODING);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -101,41 +214,86 @@ public class HttpURLConnStack implements HttpStack{
         Request.HttpMethod method = request.getHttpMethod();
         connection.setRequestMethod(method.toString());
 
-        //add params.如果body不为空，证明有请求数据
-        byte[] body = request.getBody();
-        if (body != null){
+        //add params.如果body不为空，证明有请求数据。流式body不生成字节数组
+        final boolean streamingBody = request.isStreamingBody();
+        byte[] body = streamingBody ? null : request.getBody();
+        if (body != null || streamingBody){
             //enable output
             connection.setDoOutput(true);
             //set content type
             connection.addRequestProperty(Request.HEADER_CONTENT_TYPE, request.getBodyContentType());
+            if (request.isGzipBody()){
+                //压缩后的长度事先未知，使用分块传输，边压缩边写入连接
+                connection.setChunkedStreamingMode(0);
+                connection.setRequestProperty(Request.HEADER_CONTENT_ENCODING, "gzip");
+                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(connection.getOutputStream(), GZIP_BUFFER_SIZE);
+                writeBody(gzipOutputStream, request, body);
+                gzipOutputStream.close();
+                return;
+            }
+            //长度已知时使用固定长度模式，HttpURLConnection不会再将整个body缓存在内存中
+            long contentLength = streamingBody ? request.getBodyContentLength() : body.length;
+            if (contentLength >= 0){
+                connection.setFixedLengthStreamingMode(contentLength);
+            }else{
+                connection.setChunkedStreamingMode(0);
+            }
             //write params data to connection
             DataOutputStream dataOutputStream = new DataOutputStream(connection.getOutputStream());
-            dataOutputStream.write(body);
+            writeBody(dataOutputStream, request, body);
             dataOutputStream.close();
         }
     }
 
     /**
-     * 如果是Https请求，则使用用户配置的SSlSocketFactory
-     * @param request
+     * 写入body，body为null时表示流式body，由Request自己写入。设置了进度Listener时统计写入的字节数
      */
-    private void configHttps(Request<?> request){
-        if (request.isHttps()){
-            SSLSocketFactory sslFactory = mConfig.getSslSocketFactory();
-            //配置Https
-            if (sslFactory != null){
-                HttpsURLConnection.setDefaultSSLSocketFactory(sslFactory);
-                HttpsURLConnection.setDefaultHostnameVerifier(mConfig.getHostnameVerifier());
-            }
+    private static void writeBody(OutputStream outputStream, Request<?> request, byte[] body) throws IOException {
+        ProgressTracker tracker = request.newProgressTracker(true,
+                body != null ? body.length : request.getBodyContentLength());
+        if (tracker != null){
+            outputStream = tracker.wrap(outputStream);
+        }
+        if (body != null){
+            outputStream.write(body);
+        }else{
+            request.writeBody(outputStream);
+        }
+        if (tracker != null){
+            tracker.finish();
+        }
+    }
+
+    /**
+     * 如果是Https请求，则使用用户配置的SSlSocketFactory与HostnameVerifier。
+     * 只设置在该连接上，不修改HttpsURLConnection的全局默认值，不影响其他HttpStack以及其他库的连接
+     * @param urlConnection
+     */
+    private void configHttps(URLConnection urlConnection){
+        if (!(urlConnection instanceof HttpsURLConnection)){
+            return;
+        }
+        HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
+        SSLSocketFactory sslFactory = mConfig.getSslSocketFactory();
+        if (sslFactory != null){
+            httpsConnection.setSSLSocketFactory(sslFactory);
+        }
+        HostnameVerifier hostnameVerifier = mConfig.getHostnameVerifier();
+        if (hostnameVerifier != null){
+            httpsConnection.setHostnameVerifier(hostnameVerifier);
         }
     }
 
     /**
      * 返回通过HttpURLConnection请求得到的response
      * @param connection
+     * @param request
+     * @param lease 连接复用模式下的连接，为null时不复用连接
+     * @param transparentEncoding 是否透明解压结果
      * @return
      */
-    private Response fetchResponse(HttpURLConnection connection) throws IOException {
+    private Response fetchResponse(HttpURLConnection connection, Request<?> request, ConnectionLease lease,
+                                   boolean transparentEncoding) throws IOException {
         //initialize HttpResponse with data from the HttpURLConnection
         ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
         int responseCode = connection.getResponseCode();
@@ -149,18 +307,24 @@ public class HttpURLConnStack implements HttpStack{
         //构建response
         Response response = new Response(responseStatus);
 
-        response.setEntity(entityFromURLConnection(connection));
         addHeadersToResponse(response, connection);
+        //流式结果不在这里读取，由调用者通过Response.getContent()读取
+        response.setEntity(entityFromURLConnection(response, connection, request, lease, transparentEncoding),
+                request.isStreamingResponse());
         return response;
     }
 
     /**
      * 执行HTTP请求之后获取到其数据流，即返回请求结果的流
+     * @param response 透明解压时去掉其Content-Encoding与Content-Length
      * @param connection
+     * @param request
+     * @param lease 连接复用模式下的连接，为null时不复用连接
+     * @param transparentEncoding 是否透明解压结果
      * @return
      */
-    private HttpEntity entityFromURLConnection(HttpURLConnection connection){
-        BasicHttpEntity entity = new BasicHttpEntity();
+    private HttpEntity entityFromURLConnection(Response response, HttpURLConnection connection, Request<?> request,
+                                               ConnectionLease lease, boolean transparentEncoding) throws IOException {
         InputStream inputStream = null;
         try {
             inputStream = connection.getInputStream();
@@ -169,13 +333,18 @@ public class HttpURLConnStack implements HttpStack{
             inputStream = connection.getErrorStream();
         }
 
-        // TODO: 2016/8/5 GZIP
-        entity.setContent(inputStream);
-        entity.setContentLength(connection.getContentLength());
-        entity.setContentEncoding(connection.getContentEncoding());
-        entity.setContentType(connection.getContentType());
+        if (lease != null){
+            if (inputStream != null){
+                inputStream = new PooledInputStream(inputStream, connection, lease);
+            }else{
+                //没有body的结果，连接可以直接复用
+                lease.release(isKeepAlive(connection));
+            }
+        }
 
-        return entity;
+        //边读取边解压
+        return ContentDecoder.createEntity(response, inputStream, connection.getContentLength(),
+                connection.getContentType(), connection.getContentEncoding(), transparentEncoding, request);
     }
 
     /**
@@ -192,6 +361,104 @@ public class HttpURLConnStack implements HttpStack{
             }
         }
     }
+
+    /**
+     * 服务端没有要求关闭连接时才能复用
+     */
+    private static boolean isKeepAlive(HttpURLConnection connection){
+        return !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
+    }
+
+    /**
+     * 连接复用模式下的输入流，关闭时读取完剩余的数据，使系统可以将连接放回连接池；
+     * 剩余数据过多或者读取失败时断开连接
+     */
+    private class PooledInputStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+        private final ConnectionLease mLease;
+        private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+        PooledInputStream(InputStream in, HttpURLConnection connection, ConnectionLease lease){
+            super(in);
+            mConnection = connection;
+            mLease = lease;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!isReleased.compareAndSet(false, true)){
+                return;
+            }
+            boolean reusable = isKeepAlive(mConnection) && drain();
+            try{
+                super.close();
+            }finally {
+                if (!reusable){
+                    mConnection.disconnect();
+                }
+                mLease.release(reusable);
+            }
+        }
+
+        /**
+         * 读取并丢弃剩余的数据，返回是否读到了末尾
+         */
+        private boolean drain(){
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            try{
+                int count;
+                while ((count = in.read(buffer)) != -1){
+                    drained += count;
+                    if (drained > MAX_DRAIN_BYTES){
+                        return false;
+                    }
+                }
+                return true;
+            }catch (IOException e){
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 连接复用模式下一次请求占用的连接，只归还一次
+     */
+    private class ConnectionLease {
+        private final String mAddress;
+        private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+        ConnectionLease(String address){
+            mAddress = address;
+        }
+
+        void release(boolean reusable){
+            if (isReleased.compareAndSet(false, true)){
+                mConnectionPool.release(mAddress, reusable);
+            }
+        }
+    }
+
+    /**
+     * 流式结果读取完毕或者请求被取消时断开连接
+     */
+    private static class ConnectionCloser implements Closeable, Request.AbortHandler {
+        private final HttpURLConnection mConnection;
+
+        ConnectionCloser(HttpURLConnection connection){
+            mConnection = connection;
+        }
+
+        @Override
+        public void close() {
+            mConnection.disconnect();
+        }
+
+        @Override
+        public void abort() {
+            mConnection.disconnect();
+        }
+    }
 }
 
 
@@ -214,5 +481,6 @@ public class HttpURLConnStack implements HttpStack{
 
 
 
+
 
 
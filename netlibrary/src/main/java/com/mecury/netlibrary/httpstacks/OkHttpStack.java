@@ -0,0 +1,270 @@
+package com.mecury.netlibrary.httpstacks;
+
+import com.mecury.netlibrary.base.ProgressTracker;
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+import com.mecury.netlibrary.config.HttpUrlConnConfig;
+
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * 使用OkHttpClient执行网络请求的HttpStack。
+ * <p>
+ * 请求通过OkHttpClient自身的连接池执行，同一个host的请求可以复用连接，服务端支持时使用HTTP/2多路复用。
+ * okhttp是provided依赖，使用该类的应用需要自己添加com.squareup.okhttp3:okhttp依赖。
+ * 同一个应用中的多个OkHttpStack应该共享同一个OkHttpClient，这样才能共享连接池。
+ * </p>
+ */
+public class OkHttpStack implements HttpStack{
+
+    private final OkHttpClient mClient;
+
+    /**
+     * 使用HttpUrlConnConfig中的超时与Https配置创建OkHttpClient
+     */
+    public OkHttpStack(){
+        this(HttpUrlConnConfig.getConfig());
+    }
+
+    /**
+     * 使用该HttpStack自己的超时与Https配置创建OkHttpClient，配置在创建时读取
+     */
+    public OkHttpStack(HttpUrlConnConfig config){
+        this(createClient(config));
+    }
+
+    public OkHttpStack(OkHttpClient client){
+        if (client == null){
+            throw new NullPointerException("client == null");
+        }
+        mClient = client;
+    }
+
+    private static OkHttpClient createClient(HttpUrlConnConfig config){
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(config.connTimeOunt, TimeUnit.MILLISECONDS)
+                .readTimeout(config.soTimeOut, TimeUnit.MILLISECONDS)
+                .writeTimeout(config.soTimeOut, TimeUnit.MILLISECONDS);
+        SSLSocketFactory sslFactory = config.getSslSocketFactory();
+        X509TrustManager trustManager = config.getTrustManager();
+        if (sslFactory != null && trustManager != null){
+            builder.sslSocketFactory(sslFactory, trustManager);
+        }else if (sslFactory != null){
+            builder.sslSocketFactory(sslFactory);
+        }
+        if (config.getHostnameVerifier() != null){
+            builder.hostnameVerifier(config.getHostnameVerifier());
+        }
+        return builder.build();
+    }
+
+    public OkHttpClient getClient(){
+        return mClient;
+    }
+
+    @Override
+    public Response performRequest(Request<?> request) {
+        okhttp3.Response okResponse = null;
+        boolean keepBody = false;
+        try{
+            //由这里添加Accept-Encoding，okhttp不会再自动解压，与其他HttpStack一样统一由ContentDecoder解压
+            boolean transparentEncoding = ContentDecoder.isTransparent(request);
+            final Call call = clientFor(request).newCall(createOkRequest(request, transparentEncoding));
+            //取消请求时取消Call，正在读写的执行线程会立即抛出异常
+            request.setAbortHandler(new Request.AbortHandler() {
+                @Override
+                public void abort() {
+                    call.cancel();
+                }
+            });
+            okResponse = call.execute();
+            Response response = toResponse(okResponse, request, transparentEncoding);
+            if (response.isStreaming()){
+                //流式结果读取完毕后再释放连接
+                response.setConnectionCloser(okResponse.body());
+                keepBody = true;
+            }
+            return response;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }finally {
+            if (okResponse != null && !keepBody){
+                okResponse.body().close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 设置了时限的请求使用超时时间不超过剩余时间的OkHttpClient，与mClient共享连接池与线程池
+     */
+    private OkHttpClient clientFor(Request<?> request){
+        if (request.getRemainingTimeMs() == Long.MAX_VALUE){
+            return mClient;
+        }
+        return mClient.newBuilder()
+                .connectTimeout(request.limitTimeout(mClient.connectTimeoutMillis()), TimeUnit.MILLISECONDS)
+                .readTimeout(request.limitTimeout(mClient.readTimeoutMillis()), TimeUnit.MILLISECONDS)
+                .writeTimeout(request.limitTimeout(mClient.writeTimeoutMillis()), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 将Request转换为okhttp3.Request
+     */
+    private static okhttp3.Request createOkRequest(Request<?> request, boolean transparentEncoding){
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(request.getUrl());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()){
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+        //本次执行附加的header，例如缓存验证条件
+        for (Map.Entry<String, String> header : request.getAdditionalHeaders().entrySet()){
+            builder.header(header.getKey(), header.getValue());
+        }
+        if (transparentEncoding){
+            builder.header(ContentDecoder.HEADER_ACCEPT_ENCODING, ContentDecoder.ACCEPT_ENCODING);
+        }
+        RequestBody requestBody = createRequestBody(request);
+        if (requestBody instanceof RequestBodyWriter && request.isGzipBody()){
+            builder.header(Request.HEADER_CONTENT_ENCODING, "gzip");
+        }
+        builder.method(request.getHttpMethod().toString(), requestBody);
+        return builder.build();
+    }
+
+    /**
+     * 根据请求类型创建body，POST与PUT必须带有body
+     */
+    private static RequestBody createRequestBody(Request<?> request){
+        final boolean streamingBody = request.isStreamingBody();
+        byte[] body = streamingBody ? null : request.getBody();
+        switch (request.getHttpMethod()){
+            case POST:
+            case PUT:
+                if (body == null && !streamingBody){
+                    return RequestBody.create(MediaType.parse(request.getBodyContentType()), new byte[0]);
+                }
+                return new RequestBodyWriter(request, body);
+            case DELETE:
+                return body != null || streamingBody ? new RequestBodyWriter(request, body) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 将okhttp3.Response转换为Response
+     * @param request
+     * @param transparentEncoding 是否透明解压结果
+     */
+    private static Response toResponse(okhttp3.Response okResponse, Request<?> request, boolean transparentEncoding)
+            throws IOException {
+        StatusLine responseStatus = new BasicStatusLine(protocolVersionOf(okResponse.protocol()),
+                okResponse.code(), okResponse.message());
+        Response response = new Response(responseStatus);
+
+        Headers headers = okResponse.headers();
+        for (int i = 0, size = headers.size(); i < size; i++){
+            response.addHeader(headers.name(i), headers.value(i));
+        }
+
+        ResponseBody body = okResponse.body();
+        MediaType contentType = body.contentType();
+        response.setEntity(ContentDecoder.createEntity(response, body.byteStream(), body.contentLength(),
+                contentType != null ? contentType.toString() : null,
+                okResponse.header(ContentDecoder.HEADER_CONTENT_ENCODING), transparentEncoding, request),
+                request.isStreamingResponse());
+        return response;
+    }
+
+    private static ProtocolVersion protocolVersionOf(Protocol protocol){
+        switch (protocol){
+            case HTTP_1_0:
+                return new ProtocolVersion("HTTP", 1, 0);
+            case HTTP_2:
+                return new ProtocolVersion("HTTP", 2, 0);
+            default:
+                return new ProtocolVersion("HTTP", 1, 1);
+        }
+    }
+
+    /**
+     * 写入连接时才生成的body，需要时边压缩边写入，并统计上传进度
+     */
+    private static class RequestBodyWriter extends RequestBody {
+        private final Request<?> mRequest;
+
+        /**
+         * 为null时表示流式body，由Request自己写入
+         */
+        private final byte[] mBody;
+
+        private final MediaType mContentType;
+
+        RequestBodyWriter(Request<?> request, byte[] body){
+            mRequest = request;
+            mBody = body;
+            mContentType = MediaType.parse(request.getBodyContentType());
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mContentType;
+        }
+
+        /**
+         * 压缩后的长度未知，okhttp会使用分块传输
+         */
+        @Override
+        public long contentLength() {
+            return mRequest.isGzipBody() ? -1 : uncompressedLength();
+        }
+
+        private long uncompressedLength(){
+            return mBody != null ? mBody.length : mRequest.getBodyContentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink target = mRequest.isGzipBody() ? Okio.buffer(new GzipSink(sink)) : sink;
+            OutputStream outputStream = target.outputStream();
+            ProgressTracker tracker = mRequest.newProgressTracker(true, uncompressedLength());
+            if (tracker != null){
+                outputStream = tracker.wrap(outputStream);
+            }
+            if (mBody != null){
+                outputStream.write(mBody);
+            }else{
+                mRequest.writeBody(outputStream);
+            }
+            if (target != sink){
+                //结束压缩，写出gzip的结尾
+                target.close();
+            }
+            if (tracker != null){
+                tracker.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.mecury.netlibrary.httpstacks;
+
+import com.mecury.netlibrary.base.ProgressTracker;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 统计上传进度的Entity，写入时将字节数通知给ProgressTracker
+ */
+class ProgressRequestEntity extends HttpEntityWrapper {
+
+    private final ProgressTracker mTracker;
+
+    ProgressRequestEntity(HttpEntity entity, ProgressTracker tracker) {
+        super(entity);
+        mTracker = tracker;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        wrappedEntity.writeTo(mTracker.wrap(outStream));
+        mTracker.finish();
+    }
+}
@@ -0,0 +1,54 @@
+package com.mecury.netlibrary.httpstacks;
+
+import com.mecury.netlibrary.base.Request;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 流式body的Entity，发送时由Request.writeBody()直接写入连接
+ */
+class StreamingRequestEntity extends AbstractHttpEntity {
+
+    private final Request<?> mRequest;
+
+    StreamingRequestEntity(Request<?> request) {
+        mRequest = request;
+        setContentType(request.getBodyContentType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mRequest.getBodyContentLength();
+    }
+
+    /**
+     * 会将整个body读取到内存中，发送时使用writeTo()
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeTo(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        mRequest.writeBody(outStream);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
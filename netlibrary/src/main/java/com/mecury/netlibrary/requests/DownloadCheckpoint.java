@@ -0,0 +1,239 @@
+package com.mecury.netlibrary.requests;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.Header;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 断点续传的检查点，记录资源的验证条件(ETag/Last-Modified)、总长度以及每个分段已经下载到的位置。
+ * 以Properties的格式保存在目标文件旁边，先写入临时文件再重命名，进程被杀死时也不会损坏
+ */
+class DownloadCheckpoint {
+
+    /**
+     * 每下载这么多字节保存一次检查点
+     */
+    private static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    final String url;
+
+    String etag;
+
+    String lastModified;
+
+    /**
+     * 资源的总长度，未知时为-1
+     */
+    long total = -1;
+
+    final List<Segment> segments = new ArrayList<Segment>();
+
+    DownloadCheckpoint(String url) {
+        this.url = url;
+    }
+
+    /**
+     * 读取检查点，文件不存在、损坏或者url不一致时返回null
+     */
+    static DownloadCheckpoint load(File file, String url) {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+            if (!url.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(url);
+            checkpoint.etag = properties.getProperty("etag");
+            checkpoint.lastModified = properties.getProperty("lastModified");
+            checkpoint.total = Long.parseLong(properties.getProperty("total", "-1"));
+            int count = Integer.parseInt(properties.getProperty("segments", "0"));
+            for (int i = 0; i < count; i++) {
+                Segment segment = new Segment(Long.parseLong(properties.getProperty("segment." + i + ".start")),
+                        Long.parseLong(properties.getProperty("segment." + i + ".end")));
+                segment.offset = Long.parseLong(properties.getProperty("segment." + i + ".offset"));
+                checkpoint.segments.add(segment);
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            //缺少字段或者数字格式错误
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存检查点，多个分段的线程可能同时调用
+     */
+    synchronized void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        properties.setProperty("total", String.valueOf(total));
+        properties.setProperty("segments", String.valueOf(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            properties.setProperty("segment." + i + ".start", String.valueOf(segment.start));
+            properties.setProperty("segment." + i + ".end", String.valueOf(segment.end));
+            properties.setProperty("segment." + i + ".offset", String.valueOf(segment.offset));
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Can not rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * 记录结果的验证条件，续传时通过If-Range确认资源没有变化
+     */
+    void updateValidators(Response response) {
+        Header etagHeader = response.getFirstHeader("ETag");
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+        etag = etagHeader != null ? etagHeader.getValue() : null;
+        lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+    }
+
+    /**
+     * If-Range的值，弱ETag不能用于范围请求，此时使用Last-Modified。没有验证条件时返回null，不能续传
+     */
+    String ifRangeValue() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * 将结果写入分段对应的位置，定期保存检查点，结束或者失败时也会保存。
+     * 分段的结尾已知时只写到结尾为止，未知时一直写到结果的末尾
+     * @return 分段是否已经写完，结果提前结束时返回false
+     */
+    boolean writeSegment(Segment segment, InputStream content, File partFile, File checkpointFile,
+                         Request<?> request) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        try {
+            file.seek(segment.offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long sinceCheckpoint = 0;
+            while (!segment.isFinished()) {
+                int toRead = segment.end >= 0
+                        ? (int) Math.min(buffer.length, segment.end - segment.offset + 1) : buffer.length;
+                int len = content.read(buffer, 0, toRead);
+                if (len == -1) {
+                    if (segment.end < 0) {
+                        //长度未知时读到末尾即完成
+                        segment.end = segment.offset - 1;
+                    }
+                    break;
+                }
+                if (request.isCanceled()) {
+                    throw new IOException("Download canceled: " + url);
+                }
+                file.write(buffer, 0, len);
+                segment.offset += len;
+                sinceCheckpoint += len;
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    save(checkpointFile);
+                    sinceCheckpoint = 0;
+                }
+            }
+        } finally {
+            try {
+                file.close();
+            } finally {
+                //数据写入文件之后再保存检查点
+                save(checkpointFile);
+            }
+        }
+        return segment.isFinished();
+    }
+
+    /**
+     * 解析206结果的Content-Range，返回{start, end, total}，total未知时为-1，格式错误时返回null
+     */
+    static long[] parseContentRange(Response response) {
+        Header header = response.getFirstHeader("Content-Range");
+        if (header == null) {
+            return null;
+        }
+        Matcher matcher = CONTENT_RANGE.matcher(header.getValue());
+        if (!matcher.find()) {
+            return null;
+        }
+        long total = "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3));
+        return new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)), total};
+    }
+
+    /**
+     * 一个下载分段，offset为下一个要写入的位置
+     */
+    static class Segment {
+        final long start;
+
+        /**
+         * 分段最后一个字节的位置，-1表示一直到文件末尾
+         */
+        volatile long end;
+
+        volatile long offset;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.offset = start;
+        }
+
+        boolean isFinished() {
+            return end >= 0 && offset > end;
+        }
+
+        /**
+         * 续传该分段的Range
+         */
+        String rangeValue() {
+            return "bytes=" + offset + "-" + (end >= 0 ? String.valueOf(end) : "");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.mecury.netlibrary.requests;
+
+import com.mecury.netlibrary.base.Response;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 下载请求，将结果直接写入文件，内存中只有一个固定大小的缓冲区。
+ * 先写入临时文件，下载完成后再重命名为目标文件，结果为下载完成的文件，失败时为null。
+ * 下载进度通过Request.setProgressListener()获取
+ */
+public class DownloadRequest extends StreamRequest<File> {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 目标文件
+     */
+    private File mTargetFile;
+
+    public DownloadRequest(String url, File targetFile, RequestListener<File> listener) {
+        super(HttpMethod.GET, url, listener);
+        mTargetFile = targetFile;
+    }
+
+    public File getTargetFile() {
+        return mTargetFile;
+    }
+
+    @Override
+    protected File parseStream(Response response, InputStream content, long contentLength) throws IOException {
+        int stCode = response.getStatusCode();
+        if (stCode < 200 || stCode >= 300) {
+            //错误页面不写入文件
+            return null;
+        }
+        File tmpFile = new File(mTargetFile.getPath() + ".tmp");
+        boolean isCompleted = false;
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long total = 0;
+                int len;
+                while ((len = content.read(buffer)) != -1) {
+                    if (isCanceled()) {
+                        throw new IOException("Download canceled: " + getUrl());
+                    }
+                    out.write(buffer, 0, len);
+                    total += len;
+                }
+                //连接提前断开时有的实现只返回-1而不抛出异常，不完整的文件不能当作下载成功
+                if (contentLength >= 0 && total != contentLength) {
+                    throw new IOException("Unexpected end of stream, expected " + contentLength + " bytes but got " + total);
+                }
+            } finally {
+                out.close();
+            }
+            if (mTargetFile.exists() && !mTargetFile.delete()) {
+                throw new IOException("Can not delete " + mTargetFile);
+            }
+            if (!tmpFile.renameTo(mTargetFile)) {
+                throw new IOException("Can not rename " + tmpFile + " to " + mTargetFile);
+            }
+            isCompleted = true;
+        } finally {
+            //下载失败时临时文件不会被复用，直接删除。需要断点续传时使用ResumableDownloadRequest
+            if (!isCompleted) {
+                tmpFile.delete();
+            }
+        }
+        return mTargetFile;
+    }
+}
@@ -0,0 +1,18 @@
+package com.mecury.netlibrary.requests;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * 将JsonReader读取到的token直接绑定为目标类型，配合StreamingJsonRequest使用
+ *
+ * @param <T> 绑定的结果类型
+ */
+public interface JsonBinder<T> {
+
+    /**
+     * 从reader中读取一个完整的json值并转换为目标类型
+     */
+    public T bind(JsonReader reader) throws IOException;
+}
@@ -0,0 +1,86 @@
+package com.mecury.netlibrary.requests;
+
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * 将json流直接构建为JSONObject/JSONArray树，不需要先把整个结果转换为String
+ */
+public class JsonTreeBinder implements JsonBinder<Object> {
+
+    @Override
+    public Object bind(JsonReader reader) throws IOException {
+        return readValue(reader);
+    }
+
+    /**
+     * 读取一个json值，对象为JSONObject，数组为JSONArray，null为JSONObject.NULL
+     */
+    public static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected json token: " + reader.peek());
+        }
+    }
+
+    public static JSONObject readObject(JsonReader reader) throws IOException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        try {
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                object.put(name, readValue(reader));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        reader.endObject();
+        return object;
+    }
+
+    public static JSONArray readArray(JsonReader reader) throws IOException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    /**
+     * 与JSONObject解析数字的方式保持一致，整数优先使用Integer与Long
+     */
+    private static Object parseNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                long longValue = Long.parseLong(number);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException e) {
+                //超出long的范围，按照double处理
+            }
+        }
+        return Double.valueOf(number);
+    }
+}
@@ -8,11 +8,13 @@ import com.mecury.netlibrary.entity.MultipartEntity;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Created by 海飞 on 2016/8/6.
  *
- * Multipart请求 ( 只能为POST请求 ),该请求可以搭载多种类型参数,比如文本、文件等,但是文件仅限于小文件,否则会出现OOM异常.
+ * Multipart请求 ( 只能为POST请求 ),该请求可以搭载多种类型参数,比如文本、文件等.
+ * HttpStack通过writeBody()边读取文件边上传，并使用事先计算好的Content-Length，大文件也不会出现OOM异常.
  */
 public class MultipartRequest extends Request<String>{
 
@@ -35,6 +37,24 @@ public class MultipartRequest extends Request<String>{
         return mMultipartEntity.getContentType().getValue();
     }
 
+    @Override
+    public boolean isStreamingBody() {
+        return true;
+    }
+
+    @Override
+    public long getBodyContentLength() {
+        return mMultipartEntity.getContentLength();
+    }
+
+    @Override
+    public void writeBody(OutputStream outputStream) throws IOException {
+        mMultipartEntity.writeTo(outputStream);
+    }
+
+    /**
+     * 将完整的body读取到内存中，HttpStack不会调用该方法
+     */
     @Override
     public byte[] getBody() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -48,6 +68,14 @@ public class MultipartRequest extends Request<String>{
         return bos.toByteArray();
     }
 
+    /**
+     * 不读取文件计算摘要，使用分隔符作为body的标识，每个MultipartRequest都不相同
+     */
+    @Override
+    protected String getBodyDigest() {
+        return "multipart-" + mMultipartEntity.getBoundary();
+    }
+
     @Override
     public String parseResponse(Response response) {
         if (response != null && response.getRawData() != null){
@@ -0,0 +1,133 @@
+package com.mecury.netlibrary.requests;
+
+import com.mecury.netlibrary.base.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * 支持断点续传的下载请求。
+ * <p>
+ * 下载的数据先写入目标文件旁边的.part文件，同时在.checkpoint文件中记录ETag/Last-Modified与已经下载的位置。
+ * 下载失败或者进程被杀死之后，使用相同的url与目标文件重新创建该请求即可从上次的位置继续下载：
+ * 请求会带上Range与If-Range，服务端返回206时追加写入；资源已经变化或者服务端不支持范围请求时返回200，从头开始下载。
+ * 为了保证续传的位置与服务端的字节一致，该请求不使用透明压缩。结果为下载完成的文件，失败时为null。
+ * </p>
+ */
+public class ResumableDownloadRequest extends StreamRequest<File> {
+
+    private final File mTargetFile;
+
+    private final File mPartFile;
+
+    private final File mCheckpointFile;
+
+    private final DownloadCheckpoint mCheckpoint;
+
+    private final DownloadCheckpoint.Segment mSegment;
+
+    /**
+     * 本次请求开始时已经下载的字节数
+     */
+    private final long mResumeOffset;
+
+    public ResumableDownloadRequest(String url, File targetFile, RequestListener<File> listener) {
+        super(HttpMethod.GET, url, listener);
+        mTargetFile = targetFile;
+        mPartFile = new File(targetFile.getPath() + ".part");
+        mCheckpointFile = new File(targetFile.getPath() + ".checkpoint");
+        //续传的位置是未压缩的字节
+        addHeader("Accept-Encoding", "identity");
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(mCheckpointFile, url);
+        if (checkpoint != null && checkpoint.segments.size() == 1 && checkpoint.ifRangeValue() != null
+                && mPartFile.exists()) {
+            DownloadCheckpoint.Segment segment = checkpoint.segments.get(0);
+            //检查点可能比文件中的数据新
+            segment.offset = Math.min(segment.offset, mPartFile.length());
+            if (segment.offset > 0 && !segment.isFinished()) {
+                addHeader("Range", segment.rangeValue());
+                addHeader("If-Range", checkpoint.ifRangeValue());
+            } else {
+                segment.offset = 0;
+            }
+        } else {
+            checkpoint = new DownloadCheckpoint(url);
+            checkpoint.segments.add(new DownloadCheckpoint.Segment(0, -1));
+        }
+        mCheckpoint = checkpoint;
+        mSegment = checkpoint.segments.get(0);
+        mResumeOffset = mSegment.offset;
+    }
+
+    public File getTargetFile() {
+        return mTargetFile;
+    }
+
+    /**
+     * 本次请求开始时已经下载的字节数，下载进度回调中的字节数不包含这一部分
+     */
+    public long getResumeOffset() {
+        return mResumeOffset;
+    }
+
+    /**
+     * 资源的总长度，收到结果之前或者未知时为-1
+     */
+    public long getTotalLength() {
+        return mCheckpoint.total;
+    }
+
+    @Override
+    protected File parseStream(Response response, InputStream content, long contentLength) throws IOException {
+        int stCode = response.getStatusCode();
+        if (stCode == 206) {
+            long[] range = DownloadCheckpoint.parseContentRange(response);
+            if (range == null || range[0] != mSegment.offset) {
+                throw new IOException("Unexpected Content-Range for " + getUrl());
+            }
+            if (range[2] >= 0) {
+                mCheckpoint.total = range[2];
+                mSegment.end = range[2] - 1;
+            }
+        } else if (stCode == 200) {
+            //没有带Range、服务端不支持范围请求或者资源已经变化，从头开始下载
+            mCheckpoint.updateValidators(response);
+            mCheckpoint.total = contentLength;
+            mSegment.offset = 0;
+            mSegment.end = contentLength >= 0 ? contentLength - 1 : -1;
+            truncate(mPartFile);
+        } else {
+            if (stCode == 416) {
+                //保存的位置已经不可用，下次从头开始
+                mPartFile.delete();
+                mCheckpointFile.delete();
+            }
+            //错误页面不写入文件
+            return null;
+        }
+
+        if (!mCheckpoint.writeSegment(mSegment, content, mPartFile, mCheckpointFile, this)) {
+            throw new IOException("Download interrupted at " + mSegment.offset + ": " + getUrl());
+        }
+        if (mTargetFile.exists() && !mTargetFile.delete()) {
+            throw new IOException("Can not delete " + mTargetFile);
+        }
+        if (!mPartFile.renameTo(mTargetFile)) {
+            throw new IOException("Can not rename " + mPartFile + " to " + mTargetFile);
+        }
+        mCheckpointFile.delete();
+        return mTargetFile;
+    }
+
+    private static void truncate(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.mecury.netlibrary.requests;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+import com.mecury.netlibrary.core.RequestQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段并行下载大文件，支持断点续传。
+ * <p>
+ * 第一个请求从0开始请求整个文件，收到206与总长度之后将文件分为多个分段，其余分段作为独立的范围请求加入RequestQueue，
+ * 由多个NetworkExecutor同时下载并写入同一个.part文件的不同位置，第一个请求只读取到第一个分段的末尾。
+ * 每个分段的进度保存在.checkpoint文件中，失败或者进程被杀死之后重新调用start()只下载还没有完成的部分，
+ * 通过If-Range保证各个分段来自同一个版本的资源。同一个host的并发数仍然受RequestQueue.setMaxRequestsPerHost()限制。
+ * 服务端不支持范围请求或者没有返回ETag/Last-Modified时退化为单个请求下载。
+ * </p>
+ */
+public class SegmentedDownload {
+
+    /**
+     * 每个分段的最小字节数，文件较小时减少分段数
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final String mUrl;
+
+    private final File mTargetFile;
+
+    private final File mPartFile;
+
+    private final File mCheckpointFile;
+
+    private final int mSegmentCount;
+
+    private final Request.RequestListener<File> mListener;
+
+    private RequestQueue mRequestQueue;
+
+    private DownloadCheckpoint mCheckpoint;
+
+    /**
+     * 本次下载提交的分段请求，失败或者取消时一起取消
+     */
+    private final List<SegmentRequest> mRequests = new ArrayList<SegmentRequest>();
+
+    /**
+     * 还没有结束的分段请求数
+     */
+    private int mRunningCount = 0;
+
+    private boolean isFailed = false;
+
+    private boolean isDelivered = false;
+
+    /**
+     * @param url
+     * @param targetFile 目标文件
+     * @param segmentCount 最大分段数
+     * @param listener 下载完成或者失败时回调一次，运行在UI线程，失败时结果为null
+     */
+    public SegmentedDownload(String url, File targetFile, int segmentCount, Request.RequestListener<File> listener) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount < 1: " + segmentCount);
+        }
+        mUrl = url;
+        mTargetFile = targetFile;
+        mPartFile = new File(targetFile.getPath() + ".part");
+        mCheckpointFile = new File(targetFile.getPath() + ".checkpoint");
+        mSegmentCount = segmentCount;
+        mListener = listener;
+    }
+
+    /**
+     * 开始下载，存在可用的检查点时只下载还没有完成的分段
+     */
+    public synchronized void start(RequestQueue queue) {
+        //上一次下载还有分段在执行时先取消
+        cancelRequests();
+        mRequestQueue = queue;
+        mRunningCount = 0;
+        isFailed = false;
+        isDelivered = false;
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(mCheckpointFile, mUrl);
+        if (checkpoint != null && checkpoint.total > 0 && checkpoint.ifRangeValue() != null
+                && !checkpoint.segments.isEmpty() && mPartFile.length() == checkpoint.total) {
+            mCheckpoint = checkpoint;
+            for (DownloadCheckpoint.Segment segment : checkpoint.segments) {
+                if (!segment.isFinished()) {
+                    submit(new SegmentRequest(segment, false));
+                }
+            }
+            if (mRunningCount == 0) {
+                complete();
+            }
+            return;
+        }
+
+        //重新下载，第一个请求同时用于获取总长度
+        mPartFile.delete();
+        mCheckpointFile.delete();
+        mCheckpoint = new DownloadCheckpoint(mUrl);
+        DownloadCheckpoint.Segment first = new DownloadCheckpoint.Segment(0, -1);
+        mCheckpoint.segments.add(first);
+        submit(new SegmentRequest(first, true));
+    }
+
+    private void submit(SegmentRequest request) {
+        mRequests.add(request);
+        mRunningCount++;
+        mRequestQueue.addRequest(request);
+    }
+
+    /**
+     * 取消下载，正在执行的分段会中断连接，不会再回调Listener。检查点保留，之后调用start()可以继续下载
+     */
+    public synchronized void cancel() {
+        isFailed = true;
+        isDelivered = true;
+        cancelRequests();
+    }
+
+    private void cancelRequests() {
+        for (SegmentRequest request : mRequests) {
+            request.cancel();
+        }
+        mRequests.clear();
+    }
+
+    /**
+     * 已经下载的字节数
+     */
+    public long getDownloadedBytes() {
+        DownloadCheckpoint checkpoint = mCheckpoint;
+        if (checkpoint == null) {
+            return 0;
+        }
+        synchronized (checkpoint) {
+            long downloaded = 0;
+            for (DownloadCheckpoint.Segment segment : checkpoint.segments) {
+                downloaded += segment.offset - segment.start;
+            }
+            return downloaded;
+        }
+    }
+
+    /**
+     * 文件的总长度，未知时为-1
+     */
+    public long getTotalLength() {
+        DownloadCheckpoint checkpoint = mCheckpoint;
+        return checkpoint != null ? checkpoint.total : -1;
+    }
+
+    /**
+     * 第一个请求收到结果时调用，运行在执行请求的线程中。确定总长度后拆分出其余的分段
+     */
+    private void onFirstResponse(SegmentRequest request, Response response, DownloadCheckpoint.Segment first,
+                                 long contentLength) throws IOException {
+        DownloadCheckpoint checkpoint = mCheckpoint;
+        synchronized (checkpoint) {
+            checkpoint.updateValidators(response);
+            if (response.getStatusCode() == 200) {
+                //服务端不支持范围请求，由第一个请求下载整个文件
+                checkpoint.total = contentLength;
+                first.end = contentLength >= 0 ? contentLength - 1 : -1;
+                return;
+            }
+            long[] range = DownloadCheckpoint.parseContentRange(response);
+            if (range == null || range[0] != 0) {
+                throw new IOException("Unexpected Content-Range for " + mUrl);
+            }
+            long total = range[2];
+            checkpoint.total = total;
+            if (total <= 0) {
+                return;
+            }
+            first.end = total - 1;
+            //只有一个分段时也预先设置文件长度，恢复下载时以文件长度等于总长度作为校验条件
+            RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+            try {
+                file.setLength(total);
+            } finally {
+                file.close();
+            }
+            //没有验证条件时无法保证各个分段来自同一个版本，不拆分
+            int count = checkpoint.ifRangeValue() != null
+                    ? (int) Math.max(1, Math.min(mSegmentCount, total / MIN_SEGMENT_SIZE)) : 1;
+            if (count == 1) {
+                checkpoint.save(mCheckpointFile);
+                return;
+            }
+            long segmentSize = (total + count - 1) / count;
+            first.end = segmentSize - 1;
+            for (int i = 1; i < count; i++) {
+                long start = i * segmentSize;
+                if (start >= total) {
+                    break;
+                }
+                checkpoint.segments.add(new DownloadCheckpoint.Segment(start, Math.min(total, start + segmentSize) - 1));
+            }
+            checkpoint.save(mCheckpointFile);
+        }
+        synchronized (this) {
+            if (request.isCanceled()) {
+                //拆分期间下载已经被取消
+                return;
+            }
+            for (int i = 1; i < checkpoint.segments.size(); i++) {
+                submit(new SegmentRequest(checkpoint.segments.get(i), false));
+            }
+        }
+    }
+
+    /**
+     * 分段请求结束，运行在UI线程
+     */
+    private synchronized void onSegmentComplete(boolean finished, int stCode, String errMsg) {
+        mRunningCount--;
+        if (!finished) {
+            fail(stCode, errMsg);
+        } else if (mRunningCount == 0 && !isFailed) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (mTargetFile.exists() && !mTargetFile.delete()) {
+            fail(-1, "Can not delete " + mTargetFile);
+            return;
+        }
+        if (!mPartFile.renameTo(mTargetFile)) {
+            fail(-1, "Can not rename " + mPartFile + " to " + mTargetFile);
+            return;
+        }
+        mCheckpointFile.delete();
+        deliver(200, mTargetFile, "");
+    }
+
+    /**
+     * 任意一个分段失败时停止其余分段，检查点保留，重新调用start()可以继续下载
+     */
+    private void fail(int stCode, String errMsg) {
+        isFailed = true;
+        cancelRequests();
+        deliver(stCode, null, errMsg);
+    }
+
+    private void deliver(int stCode, File file, String errMsg) {
+        if (isDelivered) {
+            return;
+        }
+        isDelivered = true;
+        if (mListener != null) {
+            mListener.onComplete(stCode, file, errMsg);
+        }
+    }
+
+    /**
+     * 下载一个分段的请求，结果为该分段是否已经下载完成
+     */
+    private class SegmentRequest extends StreamRequest<Boolean> {
+
+        private final DownloadCheckpoint.Segment mSegment;
+
+        /**
+         * 是否是第一个请求，第一个请求不带If-Range，并且负责拆分分段
+         */
+        private final boolean isFirst;
+
+        SegmentRequest(DownloadCheckpoint.Segment segment, boolean first) {
+            super(HttpMethod.GET, mUrl, new RequestListener<Boolean>() {
+                @Override
+                public void onComplete(int stCode, Boolean response, String errMsg) {
+                    onSegmentComplete(Boolean.TRUE.equals(response), stCode, errMsg);
+                }
+            });
+            mSegment = segment;
+            isFirst = first;
+            //分段的位置是未压缩的字节
+            addHeader("Accept-Encoding", "identity");
+            addHeader("Range", segment.rangeValue());
+            if (!first) {
+                addHeader("If-Range", mCheckpoint.ifRangeValue());
+            }
+        }
+
+        @Override
+        protected Boolean parseStream(Response response, InputStream content, long contentLength) throws IOException {
+            int stCode = response.getStatusCode();
+            if (isFirst) {
+                if (stCode != 200 && stCode != 206) {
+                    return false;
+                }
+                onFirstResponse(this, response, mSegment, contentLength);
+            } else {
+                //返回200说明资源已经变化，其余分段的数据不能再使用
+                long[] range = DownloadCheckpoint.parseContentRange(response);
+                if (stCode != 206 || range == null || range[0] != mSegment.offset) {
+                    mCheckpointFile.delete();
+                    return false;
+                }
+            }
+            return mCheckpoint.writeSegment(mSegment, content, mPartFile, mCheckpointFile, this);
+        }
+    }
+}
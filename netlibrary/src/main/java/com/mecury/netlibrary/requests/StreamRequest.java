@@ -0,0 +1,47 @@
+package com.mecury.netlibrary.requests;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.base.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 流式读取结果的请求，结果不会读取到内存中，而是在执行请求的线程中通过parseStream()边读边处理，
+ * 适合下载大文件等场景，内存占用与结果大小无关。流式请求不会缓存，也不会与相同的请求合并
+ *
+ * @param <T> 结果类型
+ */
+public abstract class StreamRequest<T> extends Request<T> {
+
+    public StreamRequest(HttpMethod method, String url, RequestListener<T> listener) {
+        super(method, url, listener);
+        setShouldCache(false);
+    }
+
+    @Override
+    public final boolean isStreamingResponse() {
+        return true;
+    }
+
+    /**
+     * 该方法运行在执行请求的线程中
+     */
+    @Override
+    public T parseResponse(Response response) {
+        try {
+            return parseStream(response, response.getContent(), response.getContentLength());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 读取结果流，该方法运行在执行请求的线程中，返回后流会被关闭
+     * @param response 请求结果，可以读取状态码与header
+     * @param content 结果流
+     * @param contentLength 结果的长度，未知时为-1
+     */
+    protected abstract T parseStream(Response response, InputStream content, long contentLength) throws IOException;
+}
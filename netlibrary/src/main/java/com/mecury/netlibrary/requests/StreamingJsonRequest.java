@@ -0,0 +1,71 @@
+package com.mecury.netlibrary.requests;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.mecury.netlibrary.base.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * 流式解析的Json请求，直接从网络输入流中读取token,通过JsonBinder构建结果，
+ * 不会像JsonRequest一样先把整个body读到rawData再转换为String解析，大的结果只需要一遍解析和有限的缓冲区。
+ * 与其他StreamRequest一样，结果在执行请求的线程中解析，不会缓存，也不会与相同的请求合并
+ *
+ * @param <T> 结果类型
+ */
+public class StreamingJsonRequest<T> extends StreamRequest<T> {
+
+    /**
+     * json默认编码
+     */
+    private static final String DEFAULT_JSON_CHARSET = "UTF-8";
+
+    private JsonBinder<T> mBinder;
+
+    /**
+     * @param method
+     * @param url
+     * @param binder 将json绑定为结果类型
+     * @param listener
+     */
+    public StreamingJsonRequest(HttpMethod method, String url, JsonBinder<T> binder, RequestListener<T> listener) {
+        super(method, url, listener);
+        mBinder = binder;
+    }
+
+    /**
+     * 解析为JSONObject或者JSONArray树的请求
+     */
+    public static StreamingJsonRequest<Object> newTreeRequest(HttpMethod method, String url,
+                                                              RequestListener<Object> listener) {
+        return new StreamingJsonRequest<Object>(method, url, new JsonTreeBinder(), listener);
+    }
+
+    @Override
+    protected T parseStream(Response response, InputStream content, long contentLength) throws IOException {
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(content, response.getCharset(DEFAULT_JSON_CHARSET)));
+            return mBinder.bind(reader);
+        } catch (IllegalStateException e) {
+            //JsonReader读到不符合预期的token
+            Log.e("", "### json解析错误 : " + e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+        return null;
+    }
+
+    private static void closeQuietly(JsonReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.mecury.netlibrary.cache;
+
+import com.mecury.netlibrary.base.Response;
+
+import org.apache.http.ProtocolVersion;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * DiskResponseCache的journal重放、损坏恢复与淘汰
+ */
+public class DiskResponseCacheTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mTempFolder.newFolder("cache");
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        cache.put("b", response("body b"));
+        cache.remove("b");
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertEquals("body a", body(reopened.get("a")));
+        assertNull(reopened.get("b"));
+        assertEquals(cache.size(), reopened.size());
+    }
+
+    @Test
+    public void replayRestoresAccessOrder() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        cache.put("b", response("body b"));
+        //a最近被访问过，b变成最久没有访问的缓存项
+        cache.get("a");
+        cache.put("c", response("body c"));
+        long entrySize = cache.size() / 3;
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, entrySize * 3);
+        reopened.put("d", response("body d"));
+        assertNull(reopened.get("b"));
+        assertEquals("body a", body(reopened.get("a")));
+        assertEquals("body c", body(reopened.get("c")));
+        assertEquals("body d", body(reopened.get("d")));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWhenOverMaxSize() throws Exception {
+        DiskResponseCache probe = new DiskResponseCache(mTempFolder.newFolder("probe"), 1024 * 1024);
+        probe.put("a", response("body a"));
+        long entrySize = probe.size();
+
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, entrySize * 2);
+        cache.put("a", response("body a"));
+        cache.put("b", response("body b"));
+        cache.get("a");
+        cache.put("c", response("body c"));
+
+        assertNull(cache.get("b"));
+        assertEquals("body a", body(cache.get("a")));
+        assertEquals("body c", body(cache.get("c")));
+        assertTrue(cache.size() <= cache.maxSize());
+        assertEquals(2, entryFiles().size());
+    }
+
+    @Test
+    public void corruptJournalClearsCache() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        writeFile(new File(mDirectory, DiskResponseCache.JOURNAL_FILE), "not a journal\n");
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertEquals(0, reopened.size());
+        assertTrue(entryFiles().isEmpty());
+
+        reopened.put("b", response("body b"));
+        assertEquals("body b", body(new DiskResponseCache(mDirectory, 1024 * 1024).get("b")));
+    }
+
+    @Test
+    public void truncatedJournalLineClearsCache() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        appendFile(new File(mDirectory, DiskResponseCache.JOURNAL_FILE), "CLEAN\n");
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertEquals(0, reopened.size());
+    }
+
+    @Test
+    public void corruptEntryFileIsRemoved() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        cache.put("b", response("body b"));
+        long sizeBefore = cache.size();
+        writeFile(entryFile("a"), "garbage");
+
+        assertNull(cache.get("a"));
+        assertFalse(entryFile("a").exists());
+        assertTrue(cache.size() < sizeBefore);
+        assertEquals("body b", body(cache.get("b")));
+    }
+
+    @Test
+    public void missingEntryFileIsDroppedOnOpen() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        assertTrue(entryFile("a").delete());
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertEquals(0, reopened.size());
+    }
+
+    @Test
+    public void orphanedEntryFileIsDeletedOnOpen() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        //模拟重命名完成之后、写入CLEAN之前进程被杀死
+        File orphan = entryFile("orphan");
+        writeFile(orphan, "orphan");
+        File temp = new File(mDirectory, DiskResponseCache.hashKey("b") + ".1.tmp");
+        writeFile(temp, "partial");
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertEquals("body a", body(reopened.get("a")));
+        assertFalse(orphan.exists());
+        assertFalse(temp.exists());
+        assertEquals(1, entryFiles().size());
+    }
+
+    @Test
+    public void keepsWorkingAfterJournalCompaction() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(mDirectory, 1024 * 1024);
+        cache.put("a", response("body a"));
+        for (int i = 0; i < 3000; i++) {
+            cache.get("a");
+        }
+        cache.put("b", response("body b"));
+        List<String> lines = Files.readAllLines(new File(mDirectory, DiskResponseCache.JOURNAL_FILE).toPath(),
+                Charset.forName("US-ASCII"));
+        assertTrue(lines.size() < 3000);
+
+        DiskResponseCache reopened = new DiskResponseCache(mDirectory, 1024 * 1024);
+        assertEquals("body a", body(reopened.get("a")));
+        assertEquals("body b", body(reopened.get("b")));
+    }
+
+    @Test
+    public void keepsStatusLineHeadersAndTimes() throws Exception {
+        Response response = response("body a");
+        response.addHeader("Cache-Control", "max-age=60");
+        response.addHeader("ETag", "\"v1\"");
+        response.setRequestTimes(1000, 2000);
+        new DiskResponseCache(mDirectory, 1024 * 1024).put("a", response);
+
+        Response cached = new DiskResponseCache(mDirectory, 1024 * 1024).get("a");
+        assertEquals(200, cached.getStatusCode());
+        assertEquals("max-age=60", cached.getFirstHeader("Cache-Control").getValue());
+        assertEquals("\"v1\"", cached.getFirstHeader("ETag").getValue());
+        assertEquals(1000, cached.getSentRequestAtMillis());
+        assertEquals(2000, cached.getReceivedResponseAtMillis());
+    }
+
+    private static Response response(String body) {
+        Response response = new Response(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+        response.rewData = body.getBytes(Charset.forName("UTF-8"));
+        return response;
+    }
+
+    private static String body(Response response) {
+        assertNotNull(response);
+        return new String(response.getRawData(), Charset.forName("UTF-8"));
+    }
+
+    private File entryFile(String key) {
+        return new File(mDirectory, DiskResponseCache.hashKey(key) + ".entry");
+    }
+
+    private List<File> entryFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(".entry")) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(Charset.forName("US-ASCII")));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void appendFile(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file, true);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.mecury.netlibrary.core;
+
+import com.mecury.netlibrary.base.Request;
+import com.mecury.netlibrary.requests.StringRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * RequestScheduler的出队顺序、等待时间提升、host并发限制与并发出入队
+ */
+public class RequestSchedulerTest {
+
+    private RequestScheduler mScheduler;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new RequestScheduler();
+        mScheduler.setAgingIntervalMs(0);
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void takesHigherPriorityFirst() throws Exception {
+        Request<?> low = request("http://a.com/low", Request.Priority.LOW);
+        Request<?> normal = request("http://a.com/normal", Request.Priority.NORMAL);
+        Request<?> high = request("http://a.com/high", Request.Priority.HIGH);
+        Request<?> immediate = request("http://a.com/immediate", Request.Priority.IMMEDIATE);
+        mScheduler.setMaxRequestsPerHost(10);
+        mScheduler.add(low);
+        mScheduler.add(normal);
+        mScheduler.add(high);
+        mScheduler.add(immediate);
+
+        assertSame(immediate, mScheduler.take());
+        assertSame(high, mScheduler.take());
+        assertSame(normal, mScheduler.take());
+        assertSame(low, mScheduler.take());
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void keepsFifoOrderWithinHost() throws Exception {
+        mScheduler.setMaxRequestsPerHost(10);
+        List<Request<?>> requests = new ArrayList<Request<?>>();
+        for (int i = 0; i < 5; i++) {
+            Request<?> request = request("http://a.com/" + i, Request.Priority.NORMAL);
+            requests.add(request);
+            mScheduler.add(request);
+        }
+        for (Request<?> request : requests) {
+            assertSame(request, mScheduler.take());
+        }
+    }
+
+    @Test
+    public void rotatesAcrossHostsWithinLevel() throws Exception {
+        mScheduler.setMaxRequestsPerHost(10);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.add(request("http://a.com/" + i, Request.Priority.NORMAL));
+        }
+        for (int i = 0; i < 3; i++) {
+            mScheduler.add(request("http://b.com/" + i, Request.Priority.NORMAL));
+        }
+        List<String> hosts = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            hosts.add(RequestScheduler.hostOf(mScheduler.take()));
+        }
+        assertEquals(Arrays.asList("a.com", "b.com", "a.com", "b.com", "a.com", "b.com"), hosts);
+    }
+
+    @Test
+    public void agingLetsOldRequestsOvertakeHigherLevels() throws Exception {
+        mScheduler.setAgingIntervalMs(1);
+        Request<?> low = request("http://a.com/low", Request.Priority.LOW);
+        mScheduler.add(low);
+        Thread.sleep(50);
+        Request<?> high = request("http://b.com/high", Request.Priority.HIGH);
+        mScheduler.add(high);
+
+        assertSame(low, mScheduler.take());
+        assertSame(high, mScheduler.take());
+        assertEquals(1, mScheduler.getWaitTimeHistogram(Request.Priority.LOW).getCount());
+    }
+
+    @Test
+    public void parksFullHostAndUnparksOnFinish() throws Exception {
+        mScheduler.setMaxRequestsPerHost(1);
+        Request<?> a1 = request("http://a.com/1", Request.Priority.HIGH);
+        Request<?> a2 = request("http://a.com/2", Request.Priority.HIGH);
+        Request<?> b1 = request("http://b.com/1", Request.Priority.LOW);
+        mScheduler.add(a1);
+        mScheduler.add(a2);
+        mScheduler.add(b1);
+
+        assertSame(a1, mScheduler.take());
+        //a.com已经达到上限，低优先级的b.com不会被阻塞
+        assertSame(b1, mScheduler.take());
+        Future<Request<?>> next = takeAsync();
+        assertNotTaken(next);
+        assertEquals(1, mScheduler.getRunningCount("a.com"));
+
+        mScheduler.finish(a1);
+        assertSame(a2, next.get(1, TimeUnit.SECONDS));
+        assertEquals(1, mScheduler.getRunningCount("a.com"));
+    }
+
+    @Test
+    public void raisingHostLimitUnparks() throws Exception {
+        mScheduler.setMaxRequestsPerHost(1);
+        Request<?> a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        Request<?> a2 = request("http://a.com/2", Request.Priority.NORMAL);
+        mScheduler.add(a1);
+        mScheduler.add(a2);
+        assertSame(a1, mScheduler.take());
+        Future<Request<?>> next = takeAsync();
+        assertNotTaken(next);
+
+        mScheduler.setMaxRequestsPerHost(2);
+        assertSame(a2, next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removeAndPromote() throws Exception {
+        mScheduler.setMaxRequestsPerHost(10);
+        Request<?> first = request("http://a.com/1", Request.Priority.NORMAL);
+        Request<?> second = request("http://a.com/2", Request.Priority.NORMAL);
+        Request<?> third = request("http://a.com/3", Request.Priority.NORMAL);
+        mScheduler.add(first);
+        mScheduler.add(second);
+        mScheduler.add(third);
+
+        assertTrue(mScheduler.remove(first));
+        assertFalse(mScheduler.remove(first));
+        assertFalse(mScheduler.contains(first));
+        assertTrue(mScheduler.promote(third, Request.Priority.HIGH));
+        assertEquals(Request.Priority.HIGH, third.getPriority());
+        assertEquals(2, mScheduler.size());
+
+        assertSame(third, mScheduler.take());
+        assertSame(second, mScheduler.take());
+        assertFalse(mScheduler.promote(second, Request.Priority.IMMEDIATE));
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void requeueReturnsTakenRequestToHead() throws Exception {
+        mScheduler.setMaxRequestsPerHost(1);
+        Request<?> first = request("http://a.com/1", Request.Priority.NORMAL);
+        Request<?> second = request("http://a.com/2", Request.Priority.NORMAL);
+        mScheduler.add(first);
+        mScheduler.add(second);
+        assertSame(first, mScheduler.take());
+
+        mScheduler.requeue(first);
+        assertEquals(0, mScheduler.getRunningCount("a.com"));
+        assertEquals(2, mScheduler.size());
+        assertSame(first, mScheduler.take());
+        //放回的请求不重复统计等待时间
+        assertEquals(1, mScheduler.getWaitTimeHistogram(Request.Priority.NORMAL).getCount());
+    }
+
+    @Test
+    public void requeueKeepsOriginalEnqueueTime() throws Exception {
+        mScheduler.setAgingIntervalMs(1);
+        mScheduler.setMaxRequestsPerHost(10);
+        Request<?> low = request("http://a.com/low", Request.Priority.LOW);
+        mScheduler.add(low);
+        Thread.sleep(50);
+        assertSame(low, mScheduler.take());
+        mScheduler.requeue(low);
+        Request<?> high = request("http://b.com/high", Request.Priority.HIGH);
+        mScheduler.add(high);
+
+        assertSame(low, mScheduler.take());
+        assertSame(high, mScheduler.take());
+    }
+
+    @Test
+    public void pauseBlocksTakeUntilResumed() throws Exception {
+        mScheduler.setPaused(true);
+        Request<?> request = request("http://a.com/1", Request.Priority.NORMAL);
+        mScheduler.add(request);
+        Future<Request<?>> next = takeAsync();
+        assertNotTaken(next);
+
+        mScheduler.setPaused(false);
+        assertSame(request, next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void takeWakesUpOnAdd() throws Exception {
+        Future<Request<?>> next = takeAsync();
+        assertNotTaken(next);
+        Request<?> request = request("http://a.com/1", Request.Priority.NORMAL);
+        mScheduler.add(request);
+        assertSame(request, next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clearDiscardsPendingRequests() throws Exception {
+        mScheduler.setMaxRequestsPerHost(1);
+        for (int i = 0; i < 4; i++) {
+            mScheduler.add(request("http://a.com/" + i, Request.Priority.values()[i % 4]));
+            mScheduler.add(request("http://b.com/" + i, Request.Priority.NORMAL));
+        }
+        Request<?> taken = mScheduler.take();
+        assertEquals(7, mScheduler.getPendingRequests().size());
+
+        mScheduler.clear();
+        assertEquals(0, mScheduler.size());
+        assertTrue(mScheduler.getPendingRequests().isEmpty());
+        mScheduler.finish(taken);
+        Request<?> request = request("http://a.com/new", Request.Priority.LOW);
+        mScheduler.add(request);
+        assertSame(request, mScheduler.take());
+    }
+
+    @Test
+    public void concurrentAddAndTake() throws Exception {
+        final int producers = 4;
+        final int perProducer = 5000;
+        final int consumers = 4;
+        final int maxPerHost = 2;
+        final int total = producers * perProducer;
+        mScheduler.setMaxRequestsPerHost(maxPerHost);
+        mScheduler.setAgingIntervalMs(1);
+
+        final Map<Request<?>, Boolean> taken = Collections.synchronizedMap(new IdentityHashMap<Request<?>, Boolean>());
+        final ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger overLimit = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(total);
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 8; i++) {
+            running.put("h" + i + ".com", new AtomicInteger());
+        }
+
+        for (int c = 0; c < consumers; c++) {
+            mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (true) {
+                        Request<?> request = mScheduler.take();
+                        String host = RequestScheduler.hostOf(request);
+                        AtomicInteger count = running.get(host);
+                        if (count.incrementAndGet() > maxPerHost) {
+                            overLimit.incrementAndGet();
+                        }
+                        if (taken.put(request, Boolean.TRUE) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                        count.decrementAndGet();
+                        mScheduler.finish(request);
+                        if (remaining.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < perProducer; i++) {
+                        Request.Priority priority = Request.Priority.values()[i % Request.Priority.values().length];
+                        mScheduler.add(request("http://h" + (i % 8) + ".com/" + producer + "/" + i, priority));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        assertTrue("remaining " + remaining.get(), done.await(30, TimeUnit.SECONDS));
+        assertEquals(total, taken.size());
+        assertEquals(0, duplicates.get());
+        assertEquals(0, overLimit.get());
+        assertEquals(0, mScheduler.size());
+        for (String host : running.keySet()) {
+            assertEquals(0, mScheduler.getRunningCount(host));
+        }
+    }
+
+    private Future<Request<?>> takeAsync() {
+        return mExecutor.submit(new Callable<Request<?>>() {
+            @Override
+            public Request<?> call() throws Exception {
+                return mScheduler.take();
+            }
+        });
+    }
+
+    private static void assertNotTaken(Future<Request<?>> future) throws Exception {
+        try {
+            fail("take() returned " + future.get(100, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException expected) {
+            //还在阻塞
+        }
+    }
+
+    private static Request<?> request(String url, Request.Priority priority) {
+        StringRequest request = new StringRequest(Request.HttpMethod.GET, url, null);
+        request.setPriority(priority);
+        return request;
+    }
+}